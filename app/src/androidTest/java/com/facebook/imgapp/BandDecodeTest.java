@@ -0,0 +1,158 @@
+package com.facebook.imgapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.facebook.imgapp.utils.CliSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+// BandDecodeTest: checks that the band decode modes write the same raw
+// file as the full decode (tiled), and as the single-threaded band decode
+// (parallel), for a JPEG and a HEIC input. The band height does not
+// divide the image height, so the last band is partial.
+@RunWith(AndroidJUnit4.class)
+public class BandDecodeTest {
+    // odd dimensions (the chroma of the last row and column is not shared)
+    private final static int JPEG_WIDTH = 601;
+    private final static int JPEG_HEIGHT = 517;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "BandDecodeTest");
+        assertTrue(mDir.isDirectory() || mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    // JPEG of smooth gradients, with a patch of noise
+    private File writeJpeg() throws IOException {
+        int[] pixels = new int[JPEG_WIDTH * JPEG_HEIGHT];
+        Random random = new Random(1);
+        for (int y = 0; y < JPEG_HEIGHT; y++) {
+            for (int x = 0; x < JPEG_WIDTH; x++) {
+                int pixel = 0xff000000 | ((x & 0xff) << 16) | ((y & 0xff) << 8) | ((x + y) & 0xff);
+                if (x > JPEG_WIDTH / 2 && y > JPEG_HEIGHT / 2) {
+                    pixel = 0xff000000 | random.nextInt(0x1000000);
+                }
+                pixels[y * JPEG_WIDTH + x] = pixel;
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, JPEG_WIDTH, JPEG_HEIGHT, Bitmap.Config.ARGB_8888);
+        File file = new File(mDir, "pattern.jpg");
+        try (OutputStream os = new FileOutputStream(file)) {
+            assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, 90, os));
+        } finally {
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private File copyAsset(String name) throws IOException {
+        File file = new File(mDir, name);
+        try (InputStream is = InstrumentationRegistry.getInstrumentation().getContext().getAssets().open(name)) {
+            Files.copy(is, file.toPath());
+        }
+        return file;
+    }
+
+    private static int getHeight(File input) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(input.getPath(), options);
+        return options.outHeight;
+    }
+
+    // about 4 bands, the last one partial (even heights keep the bands
+    // aligned for every output format)
+    private static int getBandHeight(File input) {
+        int height = getHeight(input);
+        int bandHeight = Math.max(2, (height / 4) & ~1);
+        if (height % bandHeight == 0) {
+            bandHeight += 2;
+        }
+        assumeTrue("image too small for several bands: " + height + " rows", height > 2 * bandHeight);
+        return bandHeight;
+    }
+
+    private byte[] decode(File input, String decodeMode, int bandHeight, int threads) throws IOException {
+        File output = new File(mDir, input.getName() + "." + decodeMode + "." + threads + ".rgba");
+        Bundle parameters = new Bundle();
+        parameters.putString(CliSettings.DECODE, "a");
+        parameters.putString(CliSettings.INPUT, input.getPath());
+        parameters.putString(CliSettings.OUTPUT, output.getPath());
+        parameters.putString(CliSettings.DECODEMODE, decodeMode);
+        parameters.putString(CliSettings.BANDHEIGHT, String.valueOf(bandHeight));
+        parameters.putString(CliSettings.THREADS, String.valueOf(threads));
+        assertTrue(decodeMode + " decode of " + input.getName(), new ImageCodecTest().performImageCodecTest(parameters));
+        return Files.readAllBytes(output.toPath());
+    }
+
+    private void checkTiled(File input) throws IOException {
+        int bandHeight = getBandHeight(input);
+        byte[] full = decode(input, "full", bandHeight, 1);
+        assertArrayEquals("tiled (bandHeight: " + bandHeight + ")", full, decode(input, "tiled", bandHeight, 1));
+    }
+
+    private void checkParallel(File input) throws IOException {
+        int bandHeight = getBandHeight(input);
+        byte[] tiled = decode(input, "tiled", bandHeight, 1);
+        // fewer, as many, and more threads than bands (workers that get
+        // no band must not write anything)
+        int bands = (getHeight(input) + bandHeight - 1) / bandHeight;
+        for (int threads : new int[] {2, bands, bands + 2}) {
+            assertArrayEquals("parallel (bandHeight: " + bandHeight + ", threads: " + threads + ")",
+                    tiled, decode(input, "parallel", bandHeight, threads));
+        }
+    }
+
+    @Test
+    public void testTiledJpeg() throws IOException {
+        checkTiled(writeJpeg());
+    }
+
+    @Test
+    public void testTiledHeic() throws IOException {
+        checkTiled(copyAsset("green.heic"));
+    }
+
+    @Test
+    public void testParallelJpeg() throws IOException {
+        checkParallel(writeJpeg());
+    }
+
+    @Test
+    public void testParallelHeic() throws IOException {
+        checkParallel(copyAsset("green.heic"));
+    }
+}
@@ -0,0 +1,67 @@
+package com.facebook.imgapp;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.Various;
+
+
+// HeadlessActivity: fast-start entry point for CLI runs.
+// Same parameters as MainActivity, but it goes straight to the codec
+// work: a plain Activity with a translucent (no-UI) theme, and no
+// layout inflation or permission UI. The permissions must be granted
+// beforehand:
+// $ adb shell pm grant com.facebook.imgapp android.permission.READ_EXTERNAL_STORAGE
+// $ adb shell pm grant com.facebook.imgapp android.permission.WRITE_EXTERNAL_STORAGE
+// $ adb shell appops set --uid com.facebook.imgapp MANAGE_EXTERNAL_STORAGE allow
+// $ adb shell am start -W -e <key1> <val1> -e <key2> <val2> com.facebook.imgapp/.HeadlessActivity
+public class HeadlessActivity extends Activity {
+    private final static String TAG = "imgapp.headless";
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        ImageCodecTest.setEntryPoint("headless");
+
+        // 1. read input parameters
+        final Bundle parameters = getIntent().getExtras();
+        if (parameters == null) {
+            Log.e(TAG, "no input parameters: activity must run from CLI");
+            exit();
+            return;
+        }
+
+        // 2. check the permissions (without asking for them)
+        String[] permissions = Various.retrieveNotGrantedPermissions(this);
+        if (permissions != null && permissions.length > 0) {
+            Log.w(TAG, "missing permissions: " + permissions.length + " (grant them with adb shell pm grant)");
+        }
+        if (Build.VERSION.SDK_INT >= 30 && !Environment.isExternalStorageManager()) {
+            Log.w(TAG, "not an external storage manager (grant it with adb shell appops set --uid com.facebook.imgapp MANAGE_EXTERNAL_STORAGE allow)");
+        }
+
+        // 3. set external storage directory
+        CliSettings.setWorkDir(this, parameters);
+
+        // 4. run the test in a separate thread (see MainActivity)
+        (new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ImageCodecScheduler.runCliJobs(HeadlessActivity.this, parameters);
+                Log.d(TAG, "Test done");
+                exit();
+            }
+        })).start();
+    }
+
+    public void exit() {
+        finishAndRemoveTask();
+        Process.killProcess(Process.myPid());
+    }
+}
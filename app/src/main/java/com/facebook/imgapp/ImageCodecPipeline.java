@@ -0,0 +1,392 @@
+package com.facebook.imgapp;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.JobResult;
+import com.facebook.imgapp.utils.LatencyHistograms;
+import com.facebook.imgapp.utils.MemoryBudget;
+import com.facebook.imgapp.utils.OutputFiles;
+import com.facebook.imgapp.utils.StageTimings;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// ImageCodecPipeline: runs a batch of jobs as a pipeline of stages
+// (read -> decode -> convert -> write), so that I/O and CPU overlap
+// across jobs: input files are read ahead, and outputs are written
+// behind, while the next image decodes.
+// Every stage has its own pool of threads, and hands off the jobs to the
+// next stage through a bounded queue, so a fast stage cannot run ahead
+// of a slow one by more than the queue size.
+// With a MemoryBudget, the read stage reserves the memory of every job
+// before taking it, and the job releases it once it leaves the pipeline,
+// so the bytes in flight are bounded too (not only the number of jobs).
+public class ImageCodecPipeline {
+    private final static String TAG = "imgapp.pipeline";
+    private final static String[] STAGE_NAMES = {"read", "decode", "convert", "write"};
+    private final static int DEFAULT_QUEUE_SIZE = 2;
+
+    // Job: the state of a job moving through the pipeline
+    static class Job {
+        final Bundle mParameters;
+        final int mJobNumber;
+        final JobResult mJobResult = new JobResult(JobReport.STAGE_CLOCK);
+        // when the read stage took the job (not when it was queued: the
+        // whole batch is queued up front)
+        long mStartNs = 0;
+        // bytes reserved from the memory budget
+        long mReservedBytes = 0;
+        int mWidth = 0;
+        int mHeight = 0;
+        // read stage output
+        byte[] mInput = null;
+        // decode stage output
+        Bitmap mBitmap = null;
+        // convert stage output
+        ByteBuffer mOutput = null;
+        // the job does not need the remaining stages
+        boolean mDone = false;
+        boolean mResult = true;
+
+        Job(Bundle parameters, int jobNumber) {
+            mParameters = parameters;
+            mJobNumber = jobNumber;
+        }
+
+        void release() {
+            mInput = null;
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+            mOutput = null;
+        }
+    }
+
+    // end of the jobs (passed down the pipeline)
+    private final static Job END = new Job(null, 0);
+
+    private final int[] mThreads;
+    private final int mQueueSize;
+    private LatencyHistograms mLatencyHistograms = null;
+    private MemoryBudget mMemoryBudget = null;
+
+
+    /**
+     * Create a pipeline.
+     *
+     * @param threads number of threads of every stage (read, decode,
+     *        convert, write)
+     * @param queueSize size of the queues between stages
+     */
+    public ImageCodecPipeline(int[] threads, int queueSize) {
+        if (threads.length != STAGE_NAMES.length) {
+            throw new IllegalArgumentException("need " + STAGE_NAMES.length + " stage thread counts");
+        }
+        mThreads = threads.clone();
+        mQueueSize = queueSize;
+    }
+
+    /**
+     * Create a pipeline from the CLI parameters ("pipelineThreads" and
+     * "pipelineQueueSize").
+     *
+     * @return the pipeline, or null if the parameters are invalid
+     */
+    public static ImageCodecPipeline create(Bundle parameters) {
+        String threadsStr = parameters.getString(CliSettings.PIPELINETHREADS, "1,1,1,1");
+        String[] items = threadsStr.split(",");
+        if (items.length != STAGE_NAMES.length) {
+            Log.e(TAG, "error: invalid pipelineThreads parameter: " + threadsStr);
+            return null;
+        }
+        int[] threads = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            try {
+                threads[i] = Integer.parseInt(items[i].trim());
+            } catch (java.lang.NumberFormatException ex) {
+                Log.e(TAG, "error: invalid pipelineThreads parameter: " + threadsStr);
+                return null;
+            }
+            if (threads[i] <= 0) {
+                Log.e(TAG, "error: invalid pipelineThreads parameter: " + threadsStr);
+                return null;
+            }
+        }
+        String queueSizeStr = parameters.getString(CliSettings.PIPELINEQUEUESIZE, String.valueOf(DEFAULT_QUEUE_SIZE));
+        int queueSize = 0;
+        try {
+            queueSize = Integer.parseInt(queueSizeStr);
+        } catch (java.lang.NumberFormatException ex) {
+            Log.e(TAG, "error: invalid pipelineQueueSize parameter: " + queueSizeStr);
+            return null;
+        }
+        if (queueSize <= 0) {
+            Log.e(TAG, "error: invalid pipelineQueueSize parameter: " + queueSizeStr);
+            return null;
+        }
+        return new ImageCodecPipeline(threads, queueSize);
+    }
+
+    /**
+     * Set the memory budget the jobs reserve from (null to disable).
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Estimate the memory of a pipeline job: jobs that go through the
+     * stages hold two frame-sized buffers at once (the input and the
+     * bitmap in the decode stage, and the bitmap and the output in the
+     * convert stage). Band decodes run whole in the decode stage.
+     */
+    static long getJobBytes(Bundle parameters) {
+        long bytes = ImageCodecScheduler.probeJobBytes(parameters);
+        if (!parameters.containsKey(CliSettings.ENCODE) &&
+                !parameters.getString(CliSettings.DECODEMODE, "full").equals("full")) {
+            return bytes;
+        }
+        return 2 * bytes;
+    }
+
+    /**
+     * Set where to record the latencies of the jobs (null to disable).
+     */
+    public void setLatencyHistograms(LatencyHistograms latencyHistograms) {
+        mLatencyHistograms = latencyHistograms;
+    }
+
+    /**
+     * Run a batch of jobs, and wait for all of them.
+     *
+     * @return true if all the jobs succeeded
+     */
+    public boolean run(List<Bundle> jobs) {
+        // 1. create the queues: queue i feeds stage i, and the last queue
+        // gets the finished jobs
+        int numberOfStages = STAGE_NAMES.length;
+        @SuppressWarnings("unchecked")
+        BlockingQueue<Job>[] queues = new BlockingQueue[numberOfStages + 1];
+        queues[0] = new ArrayBlockingQueue<Job>(jobs.size() + 1);
+        for (int i = 1; i < numberOfStages; i++) {
+            queues[i] = new ArrayBlockingQueue<Job>(mQueueSize);
+        }
+        queues[numberOfStages] = new ArrayBlockingQueue<Job>(jobs.size() + 1);
+
+        // 2. start the stages
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        Stage[] stages = new Stage[numberOfStages];
+        for (int i = 0; i < numberOfStages; i++) {
+            stages[i] = new Stage(i, mThreads[i], queues[i], queues[i + 1], (i == 0) ? mMemoryBudget : null);
+            stages[i].start();
+        }
+
+        // 3. feed the jobs
+        for (int i = 0; i < jobs.size(); i++) {
+            queues[0].add(new Job(jobs.get(i), i + 1));
+        }
+        queues[0].add(END);
+
+        // 4. collect the finished jobs
+        int failed = 0;
+        try {
+            while (true) {
+                Job job = queues[numberOfStages].take();
+                if (job == END) {
+                    break;
+                }
+                if (job.mReservedBytes > 0) {
+                    mMemoryBudget.release(job.mReservedBytes);
+                }
+                if (!job.mResult) {
+                    Log.e(TAG, "error: job " + job.mJobNumber + "/" + jobs.size() + " failed");
+                    failed += 1;
+                    if (job.mParameters.containsKey(CliSettings.OUTPUT)) {
+                        OutputFiles.discard(job.mParameters.getString(CliSettings.OUTPUT));
+                    }
+                }
+                // the job latency includes the time in the queues between
+                // stages, but not the wait for a read thread
+                long totalNs = SystemClock.elapsedRealtimeNanos() - job.mStartNs;
+                job.mJobResult.putTiming("totalMs", totalNs / 1000000);
+                if (job.mResult && mLatencyHistograms != null) {
+                    JobReport.recordLatency(mLatencyHistograms, job.mParameters, job.mJobResult, totalNs);
+                }
+                job.mJobResult.setStatus(job.mResult);
+                JobReport.writeJobResult(job.mParameters, job.mJobResult);
+            }
+            for (Stage stage : stages) {
+                stage.join();
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "error: interrupted while waiting for jobs");
+            return false;
+        }
+        long wallNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+        // 5. report the stage utilization
+        Log.d(TAG, "run: " + (jobs.size() - failed) + "/" + jobs.size() + " jobs succeeded in " + (wallNs / 1000000) + " ms");
+        if (mMemoryBudget != null) {
+            Log.d(TAG, "memory: peak reserved: " + (mMemoryBudget.getPeakReserved() >> 20) + " MB, read stage waited: " + (stages[0].mMemoryWaitNs.get() / 1000000) + " ms");
+        }
+        reportUtilization(stages, wallNs);
+        return failed == 0;
+    }
+
+    private void reportUtilization(Stage[] stages, long wallNs) {
+        // the stage with the highest utilization is the bottleneck: it
+        // is the one that other stages are waiting for (starved stages
+        // are after it, and blocked stages before it)
+        String bottleneck = null;
+        double maxUtilization = -1;
+        for (Stage stage : stages) {
+            double utilization = (wallNs > 0) ? (double) stage.mBusyNs.get() / ((double) wallNs * stage.mThreads) : 0;
+            Log.d(TAG, "stage " + STAGE_NAMES[stage.mIndex] + ": threads: " + stage.mThreads +
+                    " busy: " + (stage.mBusyNs.get() / 1000000) + " ms" +
+                    " starved: " + (stage.mStarvedNs.get() / 1000000) + " ms" +
+                    " blocked: " + (stage.mBlockedNs.get() / 1000000) + " ms" +
+                    " utilization: " + String.format("%.1f%%", 100 * utilization));
+            if (utilization > maxUtilization) {
+                maxUtilization = utilization;
+                bottleneck = STAGE_NAMES[stage.mIndex];
+            }
+        }
+        Log.d(TAG, "bottleneck stage: " + bottleneck);
+    }
+
+    // Stage: the threads of a pipeline stage
+    private static class Stage {
+        final int mIndex;
+        final int mThreads;
+        final BlockingQueue<Job> mInput;
+        final BlockingQueue<Job> mOutput;
+        final Thread[] mWorkers;
+        final AtomicInteger mLiveWorkers;
+        // time processing jobs
+        final AtomicLong mBusyNs = new AtomicLong(0);
+        // time waiting for the previous stage
+        final AtomicLong mStarvedNs = new AtomicLong(0);
+        // time waiting for the next stage
+        final AtomicLong mBlockedNs = new AtomicLong(0);
+        // budget the jobs reserve from before the stage takes them (null
+        // if none)
+        final MemoryBudget mMemoryBudget;
+        // time waiting for memory
+        final AtomicLong mMemoryWaitNs = new AtomicLong(0);
+
+        Stage(int index, int threads, BlockingQueue<Job> input, BlockingQueue<Job> output, MemoryBudget memoryBudget) {
+            mIndex = index;
+            mMemoryBudget = memoryBudget;
+            mThreads = threads;
+            mInput = input;
+            mOutput = output;
+            mWorkers = new Thread[threads];
+            mLiveWorkers = new AtomicInteger(threads);
+            for (int i = 0; i < threads; i++) {
+                mWorkers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWorker();
+                    }
+                }, TAG + "." + STAGE_NAMES[index] + "." + i);
+            }
+        }
+
+        void start() {
+            for (Thread worker : mWorkers) {
+                worker.start();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread worker : mWorkers) {
+                worker.join();
+            }
+        }
+
+        private void runWorker() {
+            // every worker has its own buffers
+            PipelineStages stages = new PipelineStages();
+            try {
+                while (true) {
+                    // 1. get a job
+                    long startNs = SystemClock.elapsedRealtimeNanos();
+                    Job job = mInput.take();
+                    long takenNs = SystemClock.elapsedRealtimeNanos();
+                    mStarvedNs.addAndGet(takenNs - startNs);
+                    if (job == END) {
+                        // let the other workers of the stage see it
+                        mInput.put(END);
+                        break;
+                    }
+                    if (mMemoryBudget != null) {
+                        long bytes = getJobBytes(job.mParameters);
+                        mMemoryBudget.reserve(bytes);
+                        job.mReservedBytes = bytes;
+                        long reservedNs = SystemClock.elapsedRealtimeNanos();
+                        mMemoryWaitNs.addAndGet(reservedNs - takenNs);
+                        takenNs = reservedNs;
+                    }
+                    if (mIndex == 0) {
+                        job.mStartNs = takenNs;
+                    }
+                    // 2. process it
+                    if (job.mResult && !job.mDone) {
+                        StageTimings.Split split = job.mJobResult.getStageTimings().start();
+                        job.mResult = process(stages, job);
+                        job.mJobResult.putTiming(STAGE_NAMES[mIndex] + "Ms", (SystemClock.elapsedRealtimeNanos() - takenNs) / 1000000);
+                        // jobs run whole (see performDecodeStage()) record
+                        // their own stages
+                        if (!job.mDone) {
+                            job.mJobResult.getStageTimings().stop(STAGE_NAMES[mIndex], split);
+                            JobReport.sampleMemory(job.mJobResult);
+                        }
+                    }
+                    if (!job.mResult) {
+                        job.release();
+                    }
+                    long processedNs = SystemClock.elapsedRealtimeNanos();
+                    mBusyNs.addAndGet(processedNs - takenNs);
+                    // 3. pass it to the next stage
+                    mOutput.put(job);
+                    mBlockedNs.addAndGet(SystemClock.elapsedRealtimeNanos() - processedNs);
+                }
+                // the last worker of the stage ends the next stage
+                if (mLiveWorkers.decrementAndGet() == 0) {
+                    mOutput.put(END);
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "error: stage " + STAGE_NAMES[mIndex] + " interrupted");
+            }
+        }
+
+        private boolean process(PipelineStages stages, Job job) {
+            try {
+                switch (mIndex) {
+                    case 0:
+                        return stages.performReadStage(job);
+                    case 1:
+                        return stages.performDecodeStage(job);
+                    case 2:
+                        return stages.performConvertStage(job);
+                    case 3:
+                        return stages.performWriteStage(job);
+                }
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.e(TAG, "error: job " + job.mJobNumber + " failed in stage " + STAGE_NAMES[mIndex], e);
+                job.mJobResult.setError(e.toString());
+            }
+            return false;
+        }
+    }
+}
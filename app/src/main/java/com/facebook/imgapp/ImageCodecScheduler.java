@@ -0,0 +1,390 @@
+package com.facebook.imgapp;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ColorSpace;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.JobManifest;
+import com.facebook.imgapp.utils.LatencyHistograms;
+import com.facebook.imgapp.utils.MemoryBudget;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// ImageCodecScheduler: runs encode/decode jobs in a bounded pool of
+// workers, with memory-aware admission control.
+// Before a job runs, its pixel memory is estimated from the image
+// dimensions and bitmap config (inJustDecodeBounds for decodes, width
+// and height for encodes), and reserved from a global MemoryBudget. Jobs that do not
+// fit wait until running jobs release their reservations.
+// Every worker thread has its own ImageCodecTest.
+public class ImageCodecScheduler {
+    private final static String TAG = "imgapp.scheduler";
+    // minimum default budget
+    private final static long MIN_BUDGET_BYTES = 64L << 20;
+
+    // JobCallback: called (in the worker thread) when a job is done
+    public interface JobCallback {
+        void onJobDone(Bundle parameters, boolean result);
+    }
+
+    private final ExecutorService mExecutor;
+    private final MemoryBudget mMemoryBudget;
+    private final ThreadLocal<ImageCodecTest> mImageCodecTest = new ThreadLocal<ImageCodecTest>() {
+        @Override
+        protected ImageCodecTest initialValue() {
+            return new ImageCodecTest();
+        }
+    };
+
+    /**
+     * Create a scheduler.
+     *
+     * @param context context (used to get the device memory info)
+     * @param parameters CLI parameters ("workers", "memoryBudgetMB", and
+     *        "bitmapPoolBudgetMB" are used)
+     */
+    public ImageCodecScheduler(Context context, Bundle parameters) {
+        int workers = 1;
+        String workersStr = parameters.getString(CliSettings.WORKERS, "1");
+        try {
+            workers = Math.max(1, Integer.parseInt(workersStr));
+        } catch (java.lang.NumberFormatException ex) {
+            Log.e(TAG, "error: invalid workers parameter: " + workersStr + " (using 1)");
+        }
+        long budgetBytes = getDefaultBudgetBytes(context, parameters);
+        String budgetStr = parameters.getString(CliSettings.MEMORYBUDGETMB, null);
+        if (budgetStr != null) {
+            try {
+                budgetBytes = Long.parseLong(budgetStr) << 20;
+            } catch (java.lang.NumberFormatException ex) {
+                Log.e(TAG, "error: invalid memoryBudgetMB parameter: " + budgetStr + " (using default)");
+            }
+        }
+        mExecutor = Executors.newFixedThreadPool(workers);
+        mMemoryBudget = new MemoryBudget(budgetBytes);
+        Log.d(TAG, "scheduler: workers: " + workers + " memory budget: " + (budgetBytes >> 20) + " MB");
+    }
+
+    /**
+     * Get the default memory budget.
+     *
+     * Bitmap pixels live in the native heap, which is only bounded by
+     * the device memory. We use the smaller of the java heap limit
+     * (Runtime.maxMemory(), i.e. the app memory class) and the device
+     * memory available before the low memory threshold, minus what the
+     * java and native heaps already use, and the bitmap pool budget.
+     */
+    private static long getDefaultBudgetBytes(Context context, Bundle parameters) {
+        Runtime runtime = Runtime.getRuntime();
+        long budget = runtime.maxMemory();
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            activityManager.getMemoryInfo(memoryInfo);
+            budget = Math.min(budget, memoryInfo.availMem - memoryInfo.threshold);
+        }
+        budget -= (runtime.totalMemory() - runtime.freeMemory());
+        budget -= Debug.getNativeHeapAllocatedSize();
+        try {
+            budget -= Long.parseLong(parameters.getString(CliSettings.BITMAPPOOLBUDGETMB, "0")) << 20;
+        } catch (java.lang.NumberFormatException ex) {
+            // reported by the bitmap pool
+        }
+        return Math.max(MIN_BUDGET_BYTES, budget);
+    }
+
+    /**
+     * Estimate the pixel memory of a job (0 if unknown): the full bitmap,
+     * or, for the band decode modes, the band bitmaps.
+     */
+    static long probeJobBytes(Bundle parameters) {
+        int width = 0;
+        int height = 0;
+        // encodes read the raw input into an ARGB_8888 bitmap
+        int bytesPerPixel = 4;
+        if (parameters.containsKey(CliSettings.ENCODE)) {
+            try {
+                width = Integer.parseInt(parameters.getString(CliSettings.WIDTH, "0"));
+                height = Integer.parseInt(parameters.getString(CliSettings.HEIGHT, "0"));
+            } catch (java.lang.NumberFormatException ex) {
+                // reported by the job
+                return 0;
+            }
+        } else if (parameters.containsKey(CliSettings.INPUT)) {
+            // the decoded config depends on the image (e.g. 16-bit PNGs
+            // decode to RGBA_F16), and on the preferred color space
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try {
+                String colorSpace = parameters.getString(CliSettings.INPREFERREDCOLORSPACE, null);
+                if (colorSpace != null) {
+                    options.inPreferredColorSpace = ColorSpace.get(ColorSpace.Named.valueOf(colorSpace));
+                }
+                BitmapFactory.decodeFile(parameters.getString(CliSettings.INPUT), options);
+            } catch (IllegalArgumentException e) {
+                // reported by the job
+                return 0;
+            }
+            width = options.outWidth;
+            height = options.outHeight;
+            bytesPerPixel = getBytesPerPixel(options.outConfig);
+        }
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        if (!parameters.containsKey(CliSettings.ENCODE)) {
+            return getDecodeBytes(parameters, width, height, bytesPerPixel);
+        }
+        return (long) bytesPerPixel * width * height;
+    }
+
+    /**
+     * Get the pixel size of a decoded bitmap config: decodes produce
+     * ARGB_8888 (the default inPreferredConfig), unless the image needs
+     * RGBA_F16.
+     */
+    static int getBytesPerPixel(Bitmap.Config config) {
+        return (config == Bitmap.Config.RGBA_F16) ? 8 : 4;
+    }
+
+    /**
+     * Get the pixel memory of a decode. Full decodes hold the whole
+     * bitmap. Band decodes ("tiled" and "parallel" decode modes) hold one
+     * band bitmap per decoding thread (bands span the full image width).
+     * Invalid parameters (reported by the job) count as a full decode.
+     */
+    static long getDecodeBytes(Bundle parameters, int width, int height, int bytesPerPixel) {
+        long frameBytes = (long) bytesPerPixel * width * height;
+        String decodeMode = parameters.getString(CliSettings.DECODEMODE, "full");
+        if (!decodeMode.equals("tiled") && !decodeMode.equals("parallel")) {
+            return frameBytes;
+        }
+        int bandHeight;
+        int threads = 1;
+        try {
+            bandHeight = Integer.parseInt(parameters.getString(CliSettings.BANDHEIGHT, String.valueOf(ImageCodecTest.DEFAULT_BAND_HEIGHT)));
+            if (decodeMode.equals("parallel")) {
+                threads = Integer.parseInt(parameters.getString(CliSettings.THREADS, String.valueOf(Runtime.getRuntime().availableProcessors())));
+            }
+        } catch (java.lang.NumberFormatException ex) {
+            return frameBytes;
+        }
+        if (bandHeight <= 0 || threads <= 0) {
+            return frameBytes;
+        }
+        // bands are aligned to the chroma subsampling (at most 2 rows)
+        bandHeight = Math.min(height, bandHeight + (bandHeight & 1));
+        // there are no more busy threads than bands
+        int bands = (height + bandHeight - 1) / bandHeight;
+        return Math.min(frameBytes, (long) bytesPerPixel * width * bandHeight * Math.min(threads, bands));
+    }
+
+    /**
+     * Queue a job. The job runs once a worker is available and its
+     * pixel memory fits in the budget.
+     */
+    public void submit(Bundle parameters, JobCallback callback) {
+        submit(parameters, null, callback);
+    }
+
+    /**
+     * Queue a job, recording its latency.
+     *
+     * @param latencyHistograms where to record the job latency (null to
+     *        disable)
+     */
+    void submit(final Bundle parameters, final LatencyHistograms latencyHistograms, final JobCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean result = false;
+                long bytes = probeJobBytes(parameters);
+                try {
+                    mMemoryBudget.reserve(bytes);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "error: interrupted while waiting for memory");
+                    callback.onJobDone(parameters, false);
+                    return;
+                }
+                try {
+                    result = mImageCodecTest.get().performImageCodecTest(parameters, latencyHistograms);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    Log.e(TAG, "error: job failed", e);
+                } finally {
+                    mMemoryBudget.release(bytes);
+                }
+                callback.onJobDone(parameters, result);
+            }
+        });
+    }
+
+    /**
+     * Read the jobs of a manifest file.
+     *
+     * Every job gets the CLI parameters (except the manifest itself),
+     * overridden by the job's own parameters.
+     */
+    static List<Bundle> readManifestJobs(Bundle cliParameters, String manifestPath) throws IOException {
+        List<Bundle> jobs = new ArrayList<>();
+        for (Map<String, String> job : JobManifest.read(manifestPath)) {
+            Bundle jobParameters = new Bundle(cliParameters);
+            jobParameters.remove(CliSettings.MANIFEST);
+            for (Map.Entry<String, String> entry : job.entrySet()) {
+                jobParameters.putString(entry.getKey(), entry.getValue());
+            }
+            jobs.add(jobParameters);
+        }
+        return jobs;
+    }
+
+    /**
+     * Run a batch of jobs from a manifest file, and wait for all of them.
+     *
+     * With "pipeline" set, the jobs run in an ImageCodecPipeline instead
+     * of the workers (reserving from the same memory budget).
+     * With "histogram" set, the latencies of the jobs are written to a
+     * histogram file.
+     *
+     * @return true if all the jobs succeeded
+     */
+    public boolean runManifest(Bundle cliParameters, String manifestPath) {
+        List<Bundle> jobs;
+        try {
+            jobs = readManifestJobs(cliParameters, manifestPath);
+        } catch (IOException e) {
+            Log.e(TAG, "error: cannot read manifest: " + e.getMessage());
+            return false;
+        }
+        LatencyHistograms latencyHistograms = null;
+        if (cliParameters.containsKey(CliSettings.HISTOGRAM)) {
+            latencyHistograms = createLatencyHistograms(cliParameters);
+            if (latencyHistograms == null) {
+                return false;
+            }
+        }
+        boolean result = runManifestJobs(cliParameters, jobs, latencyHistograms);
+        if (latencyHistograms != null && !writeLatencyHistograms(cliParameters, latencyHistograms)) {
+            return false;
+        }
+        return result;
+    }
+
+    private boolean runManifestJobs(Bundle cliParameters, List<Bundle> jobs, LatencyHistograms latencyHistograms) {
+        if (cliParameters.getString(CliSettings.PIPELINE, "0").equals("1")) {
+            ImageCodecPipeline pipeline = ImageCodecPipeline.create(cliParameters);
+            if (pipeline == null) {
+                return false;
+            }
+            pipeline.setLatencyHistograms(latencyHistograms);
+            pipeline.setMemoryBudget(mMemoryBudget);
+            return pipeline.run(jobs);
+        }
+        final CountDownLatch done = new CountDownLatch(jobs.size());
+        final AtomicInteger failed = new AtomicInteger(0);
+        for (int i = 0; i < jobs.size(); i++) {
+            Bundle jobParameters = jobs.get(i);
+            final int jobNumber = i + 1;
+            final int numberOfJobs = jobs.size();
+            Log.d(TAG, "runManifest: queueing job " + jobNumber + "/" + numberOfJobs);
+            submit(jobParameters, latencyHistograms, new JobCallback() {
+                @Override
+                public void onJobDone(Bundle parameters, boolean result) {
+                    if (!result) {
+                        Log.e(TAG, "error: job " + jobNumber + "/" + numberOfJobs + " failed");
+                        failed.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "error: interrupted while waiting for jobs");
+            return false;
+        }
+        Log.d(TAG, "runManifest: " + (jobs.size() - failed.get()) + "/" + jobs.size() + " jobs succeeded (peak memory reserved: " + (mMemoryBudget.getPeakReserved() >> 20) + " MB, blocked jobs: " + mMemoryBudget.getBlockedReservations() + ")");
+        return failed.get() == 0;
+    }
+
+    /**
+     * Create the latency histograms of a run, with the histogram files
+     * of previous runs ("histogramMerge") merged in.
+     *
+     * @return the histograms, or null if a file cannot be merged
+     */
+    static LatencyHistograms createLatencyHistograms(Bundle cliParameters) {
+        LatencyHistograms latencyHistograms = new LatencyHistograms();
+        String mergeStr = cliParameters.getString(CliSettings.HISTOGRAMMERGE, null);
+        if (mergeStr != null) {
+            for (String path : mergeStr.split(",")) {
+                try {
+                    latencyHistograms.addFile(path.trim());
+                } catch (IOException e) {
+                    Log.e(TAG, "error: cannot merge histogram file: " + e.getMessage());
+                    return null;
+                }
+            }
+        }
+        return latencyHistograms;
+    }
+
+    /**
+     * Log the latency histograms, and write the histogram file
+     * ("histogram").
+     *
+     * @return true if the file was written
+     */
+    static boolean writeLatencyHistograms(Bundle cliParameters, LatencyHistograms latencyHistograms) {
+        String histogramPath = cliParameters.getString(CliSettings.HISTOGRAM);
+        if (!latencyHistograms.isEmpty()) {
+            for (String line : latencyHistograms.toString().split("\n")) {
+                Log.i(TAG, "latency: " + line);
+            }
+        }
+        try {
+            latencyHistograms.write(histogramPath);
+        } catch (IOException e) {
+            Log.e(TAG, "error: cannot write histogram file " + histogramPath + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run the jobs in the CLI parameters: a throughput benchmark, a
+     * manifest (with a scheduler), or a single job.
+     *
+     * @return true if all the jobs succeeded
+     */
+    public static boolean runCliJobs(Context context, Bundle parameters) {
+        if (parameters.containsKey(CliSettings.SCALINGTHREADS)) {
+            return ThroughputBenchmark.run(parameters);
+        }
+        if (parameters.containsKey(CliSettings.MANIFEST)) {
+            ImageCodecScheduler scheduler = new ImageCodecScheduler(context, parameters);
+            boolean result = scheduler.runManifest(parameters, parameters.getString(CliSettings.MANIFEST));
+            scheduler.shutdown();
+            return result;
+        }
+        return new ImageCodecTest().performImageCodecTest(parameters);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
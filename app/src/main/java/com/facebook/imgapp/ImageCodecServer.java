@@ -0,0 +1,167 @@
+package com.facebook.imgapp;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.ImageStreamProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+
+
+// ImageCodecServer: decodes images sent over a socket, and streams the
+// raw pixels back as they are converted, without going through the
+// filesystem (see ImageStreamProtocol for the wire format).
+// The server listens on a loopback TCP port ("serverPort"), or on an
+// abstract unix socket ("serverSocket"), which the host reaches using
+// adb forward:
+// $ adb forward tcp:5555 tcp:5555
+// $ adb forward tcp:5555 localabstract:imgapp
+// Connections are served one at a time, and a connection can send any
+// number of requests.
+public class ImageCodecServer {
+    private final static String TAG = "imgapp.server";
+    private final static int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final Bundle mParameters;
+    private final ImageCodecTest mImageCodecTest = new ImageCodecTest();
+    private Closeable mServerSocket = null;
+    private Thread mThread = null;
+    private volatile boolean mRunning = false;
+
+
+    /**
+     * Create a server.
+     *
+     * @param parameters CLI parameters ("serverPort" or "serverSocket",
+     *        plus defaults for the requests)
+     */
+    public ImageCodecServer(Bundle parameters) {
+        mParameters = new Bundle(parameters);
+    }
+
+    /**
+     * Check whether the parameters ask for a server.
+     */
+    public static boolean isRequested(Bundle parameters) {
+        return parameters.containsKey(CliSettings.SERVERPORT) || parameters.containsKey(CliSettings.SERVERSOCKET);
+    }
+
+    /**
+     * Start listening (in a separate thread).
+     *
+     * @return true if the server is listening
+     */
+    public boolean start() {
+        try {
+            if (mParameters.containsKey(CliSettings.SERVERPORT)) {
+                String portStr = mParameters.getString(CliSettings.SERVERPORT);
+                int port = 0;
+                try {
+                    port = Integer.parseInt(portStr);
+                } catch (java.lang.NumberFormatException ex) {
+                    Log.e(TAG, "error: invalid serverPort parameter: " + portStr);
+                    return false;
+                }
+                // only reachable from the device (and adb forward)
+                final ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+                mServerSocket = serverSocket;
+                Log.d(TAG, "server listening on tcp:" + port);
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (mRunning) {
+                            try (Socket socket = serverSocket.accept()) {
+                                serve(socket.getInputStream(), socket.getOutputStream());
+                            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                                // drop the connection, and keep serving
+                                if (mRunning) {
+                                    Log.e(TAG, "error: connection failed: " + e);
+                                }
+                            }
+                        }
+                    }
+                }, TAG);
+            } else {
+                String name = mParameters.getString(CliSettings.SERVERSOCKET);
+                final LocalServerSocket serverSocket = new LocalServerSocket(name);
+                mServerSocket = serverSocket;
+                Log.d(TAG, "server listening on localabstract:" + name);
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (mRunning) {
+                            try (LocalSocket socket = serverSocket.accept()) {
+                                serve(socket.getInputStream(), socket.getOutputStream());
+                            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                                // drop the connection, and keep serving
+                                if (mRunning) {
+                                    Log.e(TAG, "error: connection failed: " + e);
+                                }
+                            }
+                        }
+                    }
+                }, TAG);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error: cannot listen: " + e.getMessage());
+            return false;
+        }
+        mRunning = true;
+        mThread.start();
+        return true;
+    }
+
+    public void stop() {
+        mRunning = false;
+        try {
+            if (mServerSocket != null) {
+                // unblocks accept()
+                mServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error: cannot close server socket: " + e.getMessage());
+        }
+    }
+
+    private void serve(InputStream inputStream, OutputStream outputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, STREAM_BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE));
+        // a failed request (even with an unchecked exception) is answered
+        // with an error, and does not stop the server
+        ImageStreamProtocol.serve(in, out, new ImageStreamProtocol.RequestHandler() {
+            @Override
+            public boolean handle(ImageStreamProtocol.Request request, DataOutputStream out) throws IOException {
+                // 1. the request parameters override the server ones
+                Bundle parameters = new Bundle(mParameters);
+                for (Map.Entry<String, String> entry : request.mParameters.entrySet()) {
+                    parameters.putString(entry.getKey(), entry.getValue());
+                }
+                // 2. decode and stream the raw frame back
+                boolean result = false;
+                try {
+                    result = mImageCodecTest.performStreamDecode(parameters, request.mEncoded, out);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    Log.e(TAG, "error: request failed", e);
+                    throw e;
+                } finally {
+                    Log.d(TAG, "request: " + request.mEncoded.length + " bytes: " + (result ? "ok" : "error"));
+                }
+                return result;
+            }
+        });
+    }
+}
@@ -0,0 +1,188 @@
+package com.facebook.imgapp;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.JobDispatcher;
+import com.facebook.imgapp.utils.ProcessJobCounter;
+
+import java.util.Map;
+
+
+// ImageCodecService: long-lived service that runs encode/decode jobs
+// without relaunching the process. Every intent is a job, with the same
+// extras as MainActivity (including "manifest"). The process (and the
+// codec libraries) stay warm between jobs. Jobs run in an
+// ImageCodecScheduler, configured by the first job ("workers",
+// "memoryBudgetMB").
+// The service requires the DUMP permission (see AndroidManifest.xml):
+// adb shell holds it, other apps do not.
+// $ adb shell am start-foreground-service -n com.facebook.imgapp/.ImageCodecService -e <key1> <val1> -e <key2> <val2>
+// $ adb shell am stopservice -n com.facebook.imgapp/.ImageCodecService
+//
+// Every job is answered with an ACTION_JOB_DONE broadcast, and with a
+// "job done" line in logcat.
+//
+// An intent with "serverPort" (or "serverSocket") starts an
+// ImageCodecServer instead, which decodes images sent over a socket.
+// $ adb shell am start-foreground-service -n com.facebook.imgapp/.ImageCodecService -e serverPort 5555
+public class ImageCodecService extends Service {
+    private final static String TAG = "imgapp.service";
+    private final static String CHANNEL_ID = "imgapp.service";
+    private final static int NOTIFICATION_ID = 1;
+
+    public static final String ACTION_JOB_DONE = "com.facebook.imgapp.JOB_DONE";
+    // job done extras (see JobDispatcher)
+    public static final String EXTRA_JOB_ID = JobDispatcher.JOB_ID;
+    public static final String EXTRA_STATUS = JobDispatcher.STATUS;
+    public static final String EXTRA_JOB_NUMBER = JobDispatcher.JOB_NUMBER;
+    public static final String EXTRA_PROCESS_START_MS = JobDispatcher.PROCESS_START_MS;
+    public static final String EXTRA_PROCESS_AGE_MS = JobDispatcher.PROCESS_AGE_MS;
+    // first job of the process only
+    public static final String EXTRA_STARTUP_MS = JobDispatcher.STARTUP_MS;
+    public static final String EXTRA_COLD_START = JobDispatcher.COLD_START;
+
+    private HandlerThread mWorkerThread;
+    private Handler mHandler;
+    private ImageCodecScheduler mScheduler = null;
+    private ImageCodecServer mServer = null;
+    private JobDispatcher<Bundle> mDispatcher;
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ImageCodecTest.setEntryPoint("service");
+        // 1. run as a foreground service (required when started from the
+        // background)
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, TAG, NotificationManager.IMPORTANCE_LOW));
+        Notification notification = new Notification.Builder(this, CHANNEL_ID)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText("waiting for jobs")
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+
+        // 2. dispatch the jobs from a worker thread
+        mWorkerThread = new HandlerThread(TAG);
+        mWorkerThread.start();
+        mHandler = new Handler(mWorkerThread.getLooper());
+        mDispatcher = new JobDispatcher<>(Process.getStartElapsedRealtime(),
+                new JobDispatcher.Clock() {
+                    @Override
+                    public long getNowMs() {
+                        return SystemClock.elapsedRealtime();
+                    }
+                },
+                new JobDispatcher.Runner<Bundle>() {
+                    @Override
+                    public void run(Bundle parameters, String jobId, ProcessJobCounter.Job job, JobDispatcher.Done done) {
+                        Log.d(TAG, "job start: jobId: " + jobId + " jobNumber: " + job.mJobNumber + " processAgeMs: " + job.mProcessAgeMs);
+                        runJob(parameters, done);
+                    }
+                },
+                new JobDispatcher.Replies() {
+                    @Override
+                    public void reply(Map<String, Object> reply) {
+                        ImageCodecService.this.reply(reply);
+                    }
+                });
+        Log.d(TAG, "service created");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || intent.getExtras() == null) {
+            Log.e(TAG, "no input parameters: service must run from CLI");
+            return START_NOT_STICKY;
+        }
+        final Bundle parameters = intent.getExtras();
+        if (ImageCodecServer.isRequested(parameters)) {
+            if (mServer != null) {
+                Log.d(TAG, "server already running");
+            } else {
+                mServer = new ImageCodecServer(parameters);
+                if (!mServer.start()) {
+                    mServer = null;
+                }
+            }
+            return START_NOT_STICKY;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDispatcher.dispatch(parameters, parameters.getString(CliSettings.JOBID));
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    private void runJob(Bundle parameters, final JobDispatcher.Done done) {
+        if (mScheduler == null) {
+            mScheduler = new ImageCodecScheduler(this, parameters);
+        }
+        if (parameters.containsKey(CliSettings.MANIFEST)) {
+            // manifest jobs share the scheduler, and the manifest is
+            // answered once all its jobs are done
+            done.onJobDone(mScheduler.runManifest(parameters, parameters.getString(CliSettings.MANIFEST)));
+        } else {
+            mScheduler.submit(parameters, new ImageCodecScheduler.JobCallback() {
+                @Override
+                public void onJobDone(Bundle parameters, boolean result) {
+                    done.onJobDone(result);
+                }
+            });
+        }
+    }
+
+    private void reply(Map<String, Object> reply) {
+        Intent intent = new Intent(ACTION_JOB_DONE);
+        intent.setPackage(getPackageName());
+        StringBuilder line = new StringBuilder("job done:");
+        for (Map.Entry<String, Object> entry : reply.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                intent.putExtra(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                intent.putExtra(entry.getKey(), (Long) value);
+            } else if (value instanceof Boolean) {
+                intent.putExtra(entry.getKey(), (Boolean) value);
+            } else {
+                intent.putExtra(entry.getKey(), String.valueOf(value));
+            }
+            line.append(" ").append(entry.getKey()).append(": ").append(value);
+        }
+        sendBroadcast(intent);
+        Log.i(TAG, line.toString());
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "service destroyed after " + mDispatcher.getJobCount() + " jobs");
+        mWorkerThread.quitSafely();
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
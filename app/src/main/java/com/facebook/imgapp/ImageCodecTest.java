@@ -0,0 +1,1537 @@
+package com.facebook.imgapp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.ColorSpace;
+import android.graphics.ImageDecoder;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.BitmapPool;
+import com.facebook.imgapp.utils.BitmapRowSink;
+import com.facebook.imgapp.utils.BitmapRowSource;
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.ExposedByteArrayOutputStream;
+import com.facebook.imgapp.utils.ImageStreamProtocol;
+import com.facebook.imgapp.utils.JobResult;
+import com.facebook.imgapp.utils.LatencyHistograms;
+import com.facebook.imgapp.utils.OutputFiles;
+import com.facebook.imgapp.utils.ParallelPixelConverter;
+import com.facebook.imgapp.utils.RawFileReader;
+import com.facebook.imgapp.utils.RawFileWriter;
+import com.facebook.imgapp.utils.RawPixelFormat;
+import com.facebook.imgapp.utils.StageTimings;
+import com.facebook.imgapp.utils.TimingStats;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// ImageCodecTest: runs encode/decode jobs.
+// The object keeps its buffers and conversion pool between jobs, so it
+// should be kept alive (and reused) when running several jobs in the
+// same process. Jobs must run one at a time in each object (see
+// ImageCodecScheduler for running jobs concurrently).
+// The pipeline stages (see PipelineStages) reuse its helpers, and the
+// job results are filled and written by JobReport.
+public class ImageCodecTest {
+    private final static String TAG = "imgapp.test";
+    private Bundle mInputParameters;
+    private final RawFileReader mRawFileReader = new RawFileReader();
+    final RawFileWriter mRawFileWriter = new RawFileWriter();
+    private final ExposedByteArrayOutputStream mEncodedBuffer = new ExposedByteArrayOutputStream();
+    private final static int ENCODED_STREAM_BUFFER_SIZE = 1 << 16;
+    private byte[] mEncodedInputArray = new byte[0];
+    final static int DEFAULT_BAND_HEIGHT = 256;
+    // the bitmap pool is shared by all the jobs in the process
+    private static BitmapPool mBitmapPool = null;
+    private ParallelPixelConverter mParallelConverter = null;
+    // result of the running job (errors are recorded into it)
+    private JobResult mJobResult = null;
+    // component that started the process, and whether the startup time
+    // (reported by the first decode of the process) is already reported
+    private static String mEntryPoint = "unknown";
+    private static final AtomicBoolean mStartupReported = new AtomicBoolean(false);
+
+    /**
+     * Set the component that started the process ("main", "headless",
+     * or "service"), reported with the startup time.
+     */
+    public static void setEntryPoint(String entryPoint) {
+        mEntryPoint = entryPoint;
+    }
+
+    private Bitmap readRawFileToBitmap(String inputPath, int width, int height) {
+        // 1. check the input raw file size before allocating anything
+        File file = new File(inputPath);
+        long expectedLength = 4L * width * height;
+        if (file.length() != expectedLength) {
+            logError("error: raw file " + inputPath + " has " + file.length() + " bytes (expected " + expectedLength + " bytes for " + width + "x" + height + " packed RGBA)");
+            return null;
+        }
+
+        // 2. read the raw file into the bitmap in stripes
+        // The raw bytes are stored verbatim (as Bitmap.copyPixelsFromBuffer()
+        // does), so we disable premultiplication while setting the pixels.
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPremultiplied(false);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            mRawFileReader.read(fis.getChannel(), width, height, new BitmapRowSink(bitmap));
+        } catch (IOException e1) {
+            logError(e1);
+            bitmap.recycle();
+            return null;
+        }
+        bitmap.setPremultiplied(true);
+        putMemoryPeak("rawReaderBufferBytes", mRawFileReader.getBufferBytes());
+        recordBitmapMemory(bitmap);
+        return bitmap;
+    }
+
+    private ColorSpace getPreferredColorSpace() {
+        if (! mInputParameters.containsKey(CliSettings.INPREFERREDCOLORSPACE)) {
+            return null;
+        }
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.O) {
+            Log.d(TAG, "getPreferredColorSpace(): build version (" + android.os.Build.VERSION.SDK_INT + ") does not support inPreferredColorSpace");
+            return null;
+        }
+        String name = mInputParameters.getString(CliSettings.INPREFERREDCOLORSPACE);
+        try {
+            ColorSpace.Named value = ColorSpace.Named.valueOf(name);
+            return ColorSpace.get(value);
+        } catch (IllegalArgumentException e1) {
+            logError("getPreferredColorSpace(): invalid inPreferredColorSpace parameter: " + name);
+        }
+        return null;
+    }
+
+    private BitmapFactory.Options getBitmapFactoryOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        ColorSpace colorSpace = getPreferredColorSpace();
+        if (colorSpace != null) {
+            options.inPreferredColorSpace = colorSpace;
+        }
+        return options;
+    }
+
+    private Bitmap readEncodedFileToBitmap(String inputPath) {
+        // get the encoded reader
+        String encodedReader = mInputParameters.getString(CliSettings.ENCODEDREADER, "file");
+        if (encodedReader.equals("mmap") && android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.P) {
+            Log.d(TAG, "readEncodedFileToBitmap(): build version (" + android.os.Build.VERSION.SDK_INT + ") does not support ImageDecoder: using \"array\"");
+            encodedReader = "array";
+        }
+        try {
+            // the file and mmap readers read the file while decoding
+            if (encodedReader.equals("file")) {
+                StageTimings.Split split = startStage();
+                Bitmap bitmap = readEncodedFileToBitmapFile(inputPath);
+                recordStage("decode", split);
+                return bitmap;
+            } else if (encodedReader.equals("mmap")) {
+                StageTimings.Split split = startStage();
+                Bitmap bitmap = readEncodedFileToBitmapMapped(inputPath);
+                recordStage("decode", split);
+                return bitmap;
+            } else if (encodedReader.equals("array")) {
+                return readEncodedFileToBitmapArray(inputPath);
+            }
+        } catch (IOException e1) {
+            logError(e1);
+            return null;
+        }
+        logError("error: invalid encodedReader parameter: " + encodedReader);
+        return null;
+    }
+
+    private Bitmap readEncodedFileToBitmapFile(String inputPath) {
+        reportStartup();
+        BitmapFactory.Options options = getBitmapFactoryOptions();
+        BitmapPool bitmapPool = getBitmapPool();
+        if (bitmapPool != null) {
+            // probe the dimensions to get a pooled bitmap
+            BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+            boundsOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(inputPath, boundsOptions);
+            setPooledBitmap(bitmapPool, options, boundsOptions.outWidth, boundsOptions.outHeight);
+        }
+        // https://stackoverflow.com/a/19172326
+        Bitmap bitmap = BitmapFactory.decodeFile(inputPath, options);
+        if (bitmap == null && options.inBitmap != null) {
+            // the pooled bitmap could not be reused: retry without it
+            bitmapPool.release(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(inputPath, options);
+        }
+        recordBitmapMemory(bitmap);
+        return bitmap;
+    }
+
+    private Bitmap readEncodedFileToBitmapMapped(String inputPath) throws IOException {
+        // 1. map the encoded file
+        ByteBuffer buffer;
+        try (FileInputStream fis = new FileInputStream(inputPath)) {
+            FileChannel channel = fis.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        // 2. decode from the mapping (the mapping outlives the channel)
+        // Note that ImageDecoder does not support reusing bitmaps.
+        final ColorSpace colorSpace = getPreferredColorSpace();
+        ImageDecoder.Source source = ImageDecoder.createSource(buffer);
+        reportStartup();
+        Bitmap bitmap = ImageDecoder.decodeBitmap(source, new ImageDecoder.OnHeaderDecodedListener() {
+            @Override
+            public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo info, ImageDecoder.Source source) {
+                // we need to access the pixels from the CPU
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                if (colorSpace != null) {
+                    decoder.setTargetColorSpace(colorSpace);
+                }
+            }
+        });
+        recordBitmapMemory(bitmap);
+        return bitmap;
+    }
+
+    private Bitmap readEncodedFileToBitmapArray(String inputPath) throws IOException {
+        // 1. read the full encoded file into the (reused) array
+        StageTimings.Split split = startStage();
+        int length = readFileToEncodedInputArray(new File(inputPath));
+        recordStage("read", split);
+        putMemoryPeak("encodedInputBytes", mEncodedInputArray.length);
+        // 2. decode from memory
+        Bitmap bitmap = decodeEncodedArrayToBitmap(mEncodedInputArray, length);
+        recordStage("decode", split);
+        return bitmap;
+    }
+
+    Bitmap decodeEncodedArrayToBitmap(byte[] data, int length) {
+        reportStartup();
+        BitmapFactory.Options options = getBitmapFactoryOptions();
+        BitmapPool bitmapPool = getBitmapPool();
+        if (bitmapPool != null) {
+            // probe the dimensions to get a pooled bitmap
+            BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+            boundsOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, length, boundsOptions);
+            setPooledBitmap(bitmapPool, options, boundsOptions.outWidth, boundsOptions.outHeight);
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e1) {
+            Log.d(TAG, "decodeEncodedArrayToBitmap(): cannot reuse bitmap: " + e1.getMessage());
+        }
+        if (bitmap == null && options.inBitmap != null) {
+            // the pooled bitmap could not be reused: retry without it
+            bitmapPool.release(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        recordBitmapMemory(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decode an encoded file into a packed RGBA raw file using horizontal
+     * bands.
+     *
+     * Each band is decoded with BitmapRegionDecoder and written at its
+     * own offset of the raw output, so peak memory is bounded by the band
+     * height instead of the image size. Bands span the full image width.
+     * With more than one thread, bands are decoded concurrently, using
+     * one BitmapRegionDecoder instance per worker (an instance decodes a
+     * single region at a time).
+     */
+    private boolean decodeEncodedFileToRawFileTiled(String inputPath, String outputPath, int threads) {
+        // get the band height
+        String bandHeightStr = mInputParameters.getString(CliSettings.BANDHEIGHT, String.valueOf(DEFAULT_BAND_HEIGHT));
+        int bandHeight = 0;
+        try {
+            bandHeight = Integer.parseInt(bandHeightStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError("error: invalid bandHeight parameter: " + bandHeightStr);
+            return false;
+        }
+        if (bandHeight <= 0) {
+            logError("error: invalid bandHeight parameter: " + bandHeightStr);
+            return false;
+        }
+        // get the output pixel format
+        RawPixelFormat format = getRawPixelFormat();
+        if (format == null) {
+            return false;
+        }
+        // bands must start at rows aligned to the chroma subsampling
+        int alignment = format.getRowAlignment();
+        bandHeight = ((bandHeight + alignment - 1) / alignment) * alignment;
+
+        ExecutorService executor = null;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(outputPath, "rw")) {
+            // 1. get the image dimensions (the first worker reuses the decoder)
+            reportStartup();
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(inputPath, false);
+            // the first worker owns the decoder (and recycles it) once it
+            // is handed to it: until then, a failure here must recycle it
+            boolean decoderOwned = false;
+            List<BandWorker> workers = new ArrayList<>();
+            try {
+                int width = decoder.getWidth();
+                int height = decoder.getHeight();
+                if (mJobResult != null) {
+                    mJobResult.setDimensions(width, height);
+                }
+                Log.d(TAG, "decodeEncodedFileToRawFileTiled(input: " + width + "x" + height + ", bandHeight: " + bandHeight + ", threads: " + threads + ", outputPath: " + outputPath + ")");
+
+                // 2. pre-size the raw file
+                randomAccessFile.setLength(format.getFrameSize(width, height));
+                FileChannel channel = randomAccessFile.getChannel();
+
+                // 3. decode and write the bands
+                AtomicInteger nextBand = new AtomicInteger(0);
+                if (threads == 1) {
+                    workers.add(new BandWorker(decoder, inputPath, channel, format, bandHeight, nextBand));
+                    decoderOwned = true;
+                    workers.get(0).call();
+                } else {
+                    executor = Executors.newFixedThreadPool(threads);
+                    List<Future<Void>> futures = new ArrayList<>();
+                    for (int i = 0; i < threads; i++) {
+                        workers.add(new BandWorker((i == 0) ? decoder : null, inputPath, channel, format, bandHeight, nextBand));
+                        futures.add(executor.submit(workers.get(i)));
+                        if (i == 0) {
+                            decoderOwned = true;
+                        }
+                    }
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                }
+            } finally {
+                if (!decoderOwned) {
+                    decoder.recycle();
+                }
+            }
+            // every worker holds one band bitmap
+            long bandBitmapBytes = 0;
+            for (BandWorker worker : workers) {
+                bandBitmapBytes += worker.mBandBitmapBytes;
+            }
+            putMemory("bandBitmapBytes", bandBitmapBytes);
+            if (isFsyncEnabled()) {
+                StageTimings.Split split = startStage();
+                randomAccessFile.getFD().sync();
+                recordStage("write", split);
+            }
+        } catch (IOException | InterruptedException e) {
+            logError(e);
+            return false;
+        } catch (ExecutionException e) {
+            logError(e.getCause());
+            return false;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return true;
+    }
+
+    // BandWorker: decodes bands (picked in order from a shared counter)
+    // with its own BitmapRegionDecoder, and writes them at their offset
+    // in the raw file.
+    private class BandWorker implements Callable<Void> {
+        private BitmapRegionDecoder mDecoder;
+        private final String mInputPath;
+        private final FileChannel mChannel;
+        private final RawPixelFormat mFormat;
+        private final int mBandHeight;
+        private final AtomicInteger mNextBand;
+        // size of the band bitmap (0 if the worker decoded no band), read
+        // once the worker is done
+        long mBandBitmapBytes = 0;
+
+        BandWorker(BitmapRegionDecoder decoder, String inputPath, FileChannel channel, RawPixelFormat format, int bandHeight, AtomicInteger nextBand) {
+            mDecoder = decoder;
+            mInputPath = inputPath;
+            mChannel = channel;
+            mFormat = format;
+            mBandHeight = bandHeight;
+            mNextBand = nextBand;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            BitmapFactory.Options options = getBitmapFactoryOptions();
+            options.inMutable = true;
+            if (mDecoder == null) {
+                mDecoder = BitmapRegionDecoder.newInstance(mInputPath, false);
+            }
+            try {
+                RawFileWriter rawFileWriter = new RawFileWriter();
+                rawFileWriter.setPixelFormat(mFormat);
+                rawFileWriter.setStageTimings(getStageTimings());
+                Rect rect = new Rect();
+                int width = mDecoder.getWidth();
+                int height = mDecoder.getHeight();
+                for (int y = mNextBand.getAndIncrement() * mBandHeight; y < height; y = mNextBand.getAndIncrement() * mBandHeight) {
+                    int rows = Math.min(mBandHeight, height - y);
+                    // 1. decode the band (reusing the previous band bitmap)
+                    rect.set(0, y, width, y + rows);
+                    StageTimings.Split split = startStage();
+                    Bitmap band = mDecoder.decodeRegion(rect, options);
+                    recordStage("decode", split);
+                    if (band == null) {
+                        throw new IOException("cannot decode band at row " + y);
+                    }
+                    recordBitmapMemory(band);
+                    mBandBitmapBytes = Math.max(mBandBitmapBytes, band.getAllocationByteCount());
+                    options.inBitmap = band;
+                    // 2. write the band rows at their offset
+                    rawFileWriter.write(new BitmapRowSource(band, rows), mChannel, 0, height, y);
+                }
+            } finally {
+                if (options.inBitmap != null) {
+                    options.inBitmap.recycle();
+                }
+                mDecoder.recycle();
+            }
+            return null;
+        }
+    }
+
+    private void reportSpeedup(String inputPath, long decodeNs) {
+        // single-threaded baseline: decode into a bitmap. Note that the
+        // band decode time also includes writing the raw file, so the
+        // speedup is conservative.
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        Bitmap bitmap = BitmapFactory.decodeFile(inputPath, getBitmapFactoryOptions());
+        if (bitmap == null) {
+            logError("error: cannot read/decode " + inputPath);
+            return;
+        }
+        long baselineNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        bitmap.recycle();
+        Log.d(TAG, "performImageCodecTest: BitmapFactory.decodeFile() baseline took " + (baselineNs / 1000000) + " ms: speedup: " + String.format("%.2f", (double) baselineNs / decodeNs));
+    }
+
+    private BitmapPool getBitmapPool() {
+        synchronized (ImageCodecTest.class) {
+            return getBitmapPoolLocked();
+        }
+    }
+
+    private BitmapPool getBitmapPoolLocked() {
+        if (mBitmapPool == null && mInputParameters.containsKey(CliSettings.BITMAPPOOLBUDGETMB)) {
+            String budgetStr = mInputParameters.getString(CliSettings.BITMAPPOOLBUDGETMB, "0");
+            long budgetMB = 0;
+            try {
+                budgetMB = Long.parseLong(budgetStr);
+            } catch (java.lang.NumberFormatException ex) {
+                logError("error: invalid bitmapPoolBudgetMB parameter: " + budgetStr);
+            }
+            if (budgetMB > 0) {
+                mBitmapPool = new BitmapPool(budgetMB << 20);
+            }
+        }
+        return mBitmapPool;
+    }
+
+    private void setPooledBitmap(BitmapPool bitmapPool, BitmapFactory.Options options, int width, int height) {
+        // pooled bitmaps must be mutable to be reused again
+        options.inMutable = true;
+        if (width > 0 && height > 0) {
+            options.inBitmap = bitmapPool.acquire(4 * width * height);
+        }
+    }
+
+    void releaseBitmap(Bitmap bitmap) {
+        // return the bitmap to the pool once we are done with its pixels
+        BitmapPool bitmapPool = getBitmapPool();
+        if (bitmapPool != null) {
+            bitmapPool.release(bitmap);
+            bitmapPool.logStats();
+        }
+    }
+
+    private int readFileToEncodedInputArray(File file) throws IOException {
+        long fileLength = file.length();
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException("file too large: " + file.getPath());
+        }
+        int length = (int) fileLength;
+        if (mEncodedInputArray.length < length) {
+            mEncodedInputArray = new byte[length];
+        }
+        readFileToArray(file, mEncodedInputArray, length);
+        return length;
+    }
+
+    static void readFileToArray(File file, byte[] array, int length) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < length) {
+                int read = fis.read(array, offset, length - offset);
+                if (read < 0) {
+                    throw new IOException("short read: " + file.getPath());
+                }
+                offset += read;
+            }
+        }
+    }
+
+    CompressFormat getCompressFormat() {
+        if (! mInputParameters.containsKey(CliSettings.COMPRESSFORMAT)) {
+            // default value
+            return CompressFormat.PNG;
+        }
+        String compressFormatName = null;
+        try {
+            compressFormatName = mInputParameters.getString(CliSettings.COMPRESSFORMAT);
+            return CompressFormat.valueOf(compressFormatName);
+        } catch (IllegalArgumentException e1) {
+            logError("getCompressFormat(): invalid CompressFormat parameter: " + compressFormatName);
+            return null;
+        }
+    }
+
+    int getCompressQuality() {
+        if (! mInputParameters.containsKey(CliSettings.COMPRESSQUALITY)) {
+            // default value
+            return 0;
+        }
+        String compressQualityStr = mInputParameters.getString(CliSettings.COMPRESSQUALITY, "0");
+        try {
+            return Integer.parseInt(compressQualityStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError("error: invalid compressQuality parameter: " + compressQualityStr);
+            return -1;
+        }
+    }
+
+    private boolean writeBitmapToEncodedFile(Bitmap bitmap, String outputPath) {
+        // get the compress format and quality
+        CompressFormat compressFormat = getCompressFormat();
+        if (compressFormat == null) {
+            return false;
+        }
+        int compressQuality = getCompressQuality();
+        if (compressQuality < 0) {
+            return false;
+        }
+        // get the encoded writer
+        String encodedWriter = mInputParameters.getString(CliSettings.ENCODEDWRITER, "stream");
+        boolean fsync = isFsyncEnabled();
+        StageTimings.Split split = startStage();
+        if (encodedWriter.equals("stream")) {
+            // encode the bitmap straight into the output file (so the
+            // "encode" stage includes the file write)
+            try (FileOutputStream fileOutputStream = new FileOutputStream(outputPath);
+                 BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream, ENCODED_STREAM_BUFFER_SIZE)) {
+                if (!bitmap.compress(compressFormat, compressQuality, bufferedOutputStream)) {
+                    logError("error: cannot encode bitmap into " + outputPath);
+                    return false;
+                }
+                bufferedOutputStream.flush();
+                recordStage("encode", split);
+                putMemoryPeak("encodedBufferBytes", ENCODED_STREAM_BUFFER_SIZE);
+                if (fsync) {
+                    fileOutputStream.getFD().sync();
+                }
+            } catch (IOException e1) {
+                logError(e1);
+                return false;
+            }
+            recordStage("write", split);
+        } else if (encodedWriter.equals("buffer")) {
+            // 1. encode the bitmap into a reusable buffer
+            mEncodedBuffer.reset();
+            if (!bitmap.compress(compressFormat, compressQuality, mEncodedBuffer)) {
+                logError("error: cannot encode bitmap");
+                return false;
+            }
+            recordStage("encode", split);
+            putMemoryPeak("encodedBufferBytes", mEncodedBuffer.getBuffer().length);
+            // 2. write the buffer contents (no intermediate copy)
+            try (FileOutputStream fileOutputStream = new FileOutputStream(outputPath)) {
+                fileOutputStream.write(mEncodedBuffer.getBuffer(), 0, mEncodedBuffer.size());
+                if (fsync) {
+                    fileOutputStream.getFD().sync();
+                }
+            } catch (IOException e1) {
+                logError(e1);
+                return false;
+            }
+            recordStage("write", split);
+        } else {
+            logError("error: invalid encodedWriter parameter: " + encodedWriter);
+            return false;
+        }
+        return true;
+    }
+
+    boolean isFsyncEnabled() {
+        String fsyncStr = mInputParameters.getString(CliSettings.FSYNC, "0");
+        return fsyncStr.equals("1");
+    }
+
+    private boolean writeBitmapToRawFile(Bitmap bitmap, String outputPath) {
+        // get the raw writer
+        String rawWriter = mInputParameters.getString(CliSettings.RAWWRITER, "bulk");
+        // get the output pixel format
+        RawPixelFormat format = getRawPixelFormat();
+        if (format == null) {
+            return false;
+        }
+        if (rawWriter.equals("stream") && format != RawPixelFormat.RGBA) {
+            logError("error: rawWriter stream only supports outputPixelFormat rgba");
+            return false;
+        }
+        if (!setupRawFileWriter(format)) {
+            return false;
+        }
+        if (rawWriter.equals("stream")) {
+            return writeBitmapToRawFileStream(bitmap, outputPath);
+        } else if (rawWriter.equals("bulk")) {
+            boolean result = writeBitmapToRawFileBulk(bitmap, outputPath);
+            putMemoryPeak("rawWriterBufferBytes", mRawFileWriter.getBufferBytes());
+            return result;
+        } else if (rawWriter.equals("mmap")) {
+            boolean result = writeBitmapToRawFileMapped(bitmap, outputPath);
+            putMemoryPeak("rawWriterBufferBytes", mRawFileWriter.getBufferBytes());
+            return result;
+        }
+        logError("error: invalid rawWriter parameter: " + rawWriter);
+        return false;
+    }
+
+    boolean setupRawFileWriter(RawPixelFormat format) {
+        mRawFileWriter.setPixelFormat(format);
+        // get the conversion parallelism
+        String convertThreadsStr = mInputParameters.getString(CliSettings.CONVERTTHREADS, "1");
+        int convertThreads = 0;
+        try {
+            convertThreads = Integer.parseInt(convertThreadsStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError("error: invalid convertThreads parameter: " + convertThreadsStr);
+            return false;
+        }
+        if (convertThreads <= 0) {
+            logError("error: invalid convertThreads parameter: " + convertThreadsStr);
+            return false;
+        }
+        if (convertThreads == 1) {
+            mRawFileWriter.setParallelConverter(null);
+        } else {
+            if (mParallelConverter == null || mParallelConverter.getParallelism() != convertThreads) {
+                if (mParallelConverter != null) {
+                    mParallelConverter.shutdown();
+                }
+                mParallelConverter = new ParallelPixelConverter(convertThreads);
+            }
+            mRawFileWriter.setParallelConverter(mParallelConverter);
+        }
+        return true;
+    }
+
+    RawPixelFormat getRawPixelFormat() {
+        String name = mInputParameters.getString(CliSettings.OUTPUTPIXELFORMAT, "rgba");
+        String matrix = mInputParameters.getString(CliSettings.OUTPUTCOLORMATRIX, "bt601");
+        String range = mInputParameters.getString(CliSettings.OUTPUTCOLORRANGE, "limited");
+        try {
+            return RawPixelFormat.get(name, matrix, range);
+        } catch (IllegalArgumentException e1) {
+            logError("error: invalid output pixel format parameters: " + e1.getMessage());
+            return null;
+        }
+    }
+
+    private boolean writeBitmapToRawFileBulk(Bitmap bitmap, String outputPath) {
+        Log.d(TAG, "writeBitmapToRawFileBulk(bitmap: " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", outputPath: " + outputPath + ")");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(outputPath)) {
+            // pull full stripes of pixels and write them as packed RGBA
+            mRawFileWriter.write(new BitmapRowSource(bitmap), fileOutputStream.getChannel());
+            if (isFsyncEnabled()) {
+                StageTimings.Split split = startStage();
+                fileOutputStream.getFD().sync();
+                recordStage("write", split);
+            }
+        } catch (IOException e) {
+            logError(e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeBitmapToRawFileMapped(Bitmap bitmap, String outputPath) {
+        Log.d(TAG, "writeBitmapToRawFileMapped(bitmap: " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", outputPath: " + outputPath + ")");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(outputPath, "rw")) {
+            // convert the pixels straight into a mapping of the output file
+            mRawFileWriter.writeMapped(new BitmapRowSource(bitmap), randomAccessFile.getChannel());
+            if (isFsyncEnabled()) {
+                StageTimings.Split split = startStage();
+                randomAccessFile.getFD().sync();
+                recordStage("write", split);
+            }
+        } catch (IOException e) {
+            logError(e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeBitmapToRawFileStream(Bitmap bitmap, String outputPath) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int numberOfPixels = width * height;
+
+        // create output streams
+        FileOutputStream fileOutputStream = null;
+        BufferedOutputStream bufferedOutputStream = null;
+        Log.d(TAG, "writeBitmapToRawFile(bitmap: " + width + "x" + height + ", outputPath: " + outputPath + ")");
+        StageTimings.Split split = startStage();
+        try {
+            fileOutputStream = new FileOutputStream(outputPath);
+            bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
+
+            // write all the bits using packed RGBA
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int pixel = bitmap.getPixel(x, y);
+                    // read pixels as ARGB (packed ARGB)
+                    int alpha = (pixel >> 24) & 0xff;
+                    int red = (pixel >> 16) & 0xff;
+                    int green = (pixel >> 8) & 0xff;
+                    int blue = pixel & 0xff;
+                    // write pixels using rgba (packed RGBA)
+                    bufferedOutputStream.write(red);
+                    bufferedOutputStream.write(green);
+                    bufferedOutputStream.write(blue);
+                    bufferedOutputStream.write(alpha);
+                }
+            }
+            // clean up (conversion and writes are interleaved, so they
+            // are all recorded as "write")
+            bufferedOutputStream.flush();
+            if (isFsyncEnabled()) {
+                fileOutputStream.getFD().sync();
+            }
+            bufferedOutputStream.close();
+            recordStage("write", split);
+        } catch (Exception e) {
+            logError(e);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Run everything found in the bundle data.
+     *
+     * @return true if the job succeeded
+     */
+    public boolean performImageCodecTest(Bundle parameters) {
+        return performImageCodecTest(parameters, null);
+    }
+
+    /**
+     * Run everything found in the bundle data, recording the stage
+     * latencies of the job (if it succeeds) in the histograms.
+     *
+     * @param latencyHistograms histograms (null to disable)
+     * @return true if the job succeeded
+     */
+    boolean performImageCodecTest(Bundle parameters, LatencyHistograms latencyHistograms) {
+        mInputParameters = parameters;
+        JobResult jobResult = new JobResult(JobReport.STAGE_CLOCK);
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        boolean result = runJob(jobResult);
+        if (result && latencyHistograms != null) {
+            JobReport.recordLatency(latencyHistograms, parameters, jobResult, SystemClock.elapsedRealtimeNanos() - startNs);
+        }
+        if (result && parameters.containsKey(CliSettings.BASELINE)) {
+            result = JobReport.compareBaseline(parameters, jobResult);
+        }
+        JobReport.writeJobResult(parameters, jobResult);
+        return result;
+    }
+
+    /**
+     * Run the job in mInputParameters, recording its outcome in the job
+     * result. The output appears under its final name only once it is
+     * complete.
+     *
+     * @return true if the job succeeded
+     */
+    boolean runJob(JobResult jobResult) {
+        mJobResult = jobResult;
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        Runtime runtime = Runtime.getRuntime();
+        jobResult.putMemory("javaHeapStartBytes", runtime.totalMemory() - runtime.freeMemory());
+        jobResult.putMemory("nativeHeapStartBytes", Debug.getNativeHeapAllocatedSize());
+        mRawFileReader.setStageTimings(jobResult.getStageTimings());
+        mRawFileWriter.setStageTimings(jobResult.getStageTimings());
+        boolean result = runImageCodecTest();
+        mRawFileReader.setStageTimings(null);
+        mRawFileWriter.setStageTimings(null);
+        // move the output into place
+        StageTimings.Split split = startStage();
+        if (mInputParameters.containsKey(CliSettings.OUTPUT)) {
+            String outputPath = mInputParameters.getString(CliSettings.OUTPUT);
+            if (result) {
+                try {
+                    OutputFiles.commit(outputPath);
+                } catch (IOException e1) {
+                    logError(e1);
+                    result = false;
+                }
+            }
+            if (!result) {
+                OutputFiles.discard(outputPath);
+            }
+        }
+        recordStage("exit", split);
+        jobResult.putMemory("javaHeapEndBytes", runtime.totalMemory() - runtime.freeMemory());
+        jobResult.putMemory("nativeHeapEndBytes", Debug.getNativeHeapAllocatedSize());
+        jobResult.putTiming("totalMs", (SystemClock.elapsedRealtimeNanos() - startNs) / 1000000);
+        jobResult.setStatus(result);
+        mJobResult = null;
+        return result;
+    }
+
+    private boolean runImageCodecTest() {
+        StageTimings.Split split = startStage();
+        if (!checkParameters()) {
+            return false;
+        }
+        final String inputPath = mInputParameters.getString(CliSettings.INPUT);
+        // write into a temporary output (see runJob())
+        final String outputPath = OutputFiles.getTempPath(mInputParameters.getString(CliSettings.OUTPUT));
+        // get the number of warmup and timed passes
+        int warmup = getCountParameter(CliSettings.WARMUP, 0);
+        int iterations = getCountParameter(CliSettings.ITERATIONS, (warmup > 0) ? 1 : 0);
+        if (warmup < 0 || iterations < 0) {
+            return false;
+        }
+
+        if (mInputParameters.containsKey(CliSettings.ENCODE)) {
+            int[] dimensions = getRawDimensions();
+            if (dimensions == null) {
+                return false;
+            }
+            recordStage("parse", split);
+            int width = dimensions[0];
+            int height = dimensions[1];
+            Log.d(TAG, "performImageCodecTest: encoding " + inputPath + " (" + width + "x" + height + ") into " + outputPath);
+            mJobResult.setDimensions(width, height);
+            if (mInputParameters.containsKey(CliSettings.SWEEPFORMATS)) {
+                return encodeSweep(inputPath, outputPath, width, height, warmup, iterations);
+            }
+            if (iterations > 0) {
+                return encodeIterations(inputPath, outputPath, width, height, warmup, iterations);
+            }
+            // 1. read raw file into bitmap
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            Bitmap bitmap = readRawFileToBitmap(inputPath, width, height);
+            if (bitmap == null) {
+                logError("error: cannot read " + inputPath);
+                return false;
+            }
+            long readNs = SystemClock.elapsedRealtimeNanos();
+            mJobResult.putTiming("readMs", (readNs - startNs) / 1000000);
+            // 2. write bitmap into encoded file
+            boolean result = writeBitmapToEncodedFile(bitmap, outputPath);
+            mJobResult.putTiming("writeMs", (SystemClock.elapsedRealtimeNanos() - readNs) / 1000000);
+            bitmap.recycle();
+            return result;
+
+        } else {  // decode
+            // 1. read encoded file into bitmap
+            Log.d(TAG, "performImageCodecTest: decoding " + inputPath + " into " + outputPath);
+            String decodeMode = mInputParameters.getString(CliSettings.DECODEMODE, "full");
+            recordStage("parse", split);
+            if (decodeMode.equals("tiled") || decodeMode.equals("parallel")) {
+                // get the number of threads
+                int threads = 1;
+                if (decodeMode.equals("parallel")) {
+                    String threadsStr = mInputParameters.getString(CliSettings.THREADS, String.valueOf(Runtime.getRuntime().availableProcessors()));
+                    try {
+                        threads = Integer.parseInt(threadsStr);
+                    } catch (java.lang.NumberFormatException ex) {
+                        logError("error: invalid threads parameter: " + threadsStr);
+                        return false;
+                    }
+                    if (threads <= 0) {
+                        logError("error: invalid threads parameter: " + threadsStr);
+                        return false;
+                    }
+                }
+                // decode and write the image in bands
+                if (iterations > 0) {
+                    final int passThreads = threads;
+                    return runIterations(warmup, iterations, new IterationPass() {
+                        @Override
+                        public boolean run() {
+                            return decodeEncodedFileToRawFileTiled(inputPath, outputPath, passThreads);
+                        }
+                    });
+                }
+                long startNs = SystemClock.elapsedRealtimeNanos();
+                if (!decodeEncodedFileToRawFileTiled(inputPath, outputPath, threads)) {
+                    logError("error: cannot read/decode " + inputPath);
+                    return false;
+                }
+                long decodeNs = SystemClock.elapsedRealtimeNanos() - startNs;
+                mJobResult.putTiming("decodeMs", decodeNs / 1000000);
+                Log.d(TAG, "performImageCodecTest: " + decodeMode + " decode (threads: " + threads + ") took " + (decodeNs / 1000000) + " ms");
+                if (mInputParameters.getString(CliSettings.REPORTSPEEDUP, "0").equals("1")) {
+                    reportSpeedup(inputPath, decodeNs);
+                }
+                return true;
+            } else if (!decodeMode.equals("full")) {
+                logError("error: invalid decodeMode parameter: " + decodeMode);
+                return false;
+            }
+            if (iterations > 0) {
+                return decodeIterations(inputPath, outputPath, warmup, iterations);
+            }
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            Bitmap bitmap = readEncodedFileToBitmap(inputPath);
+            if (bitmap == null) {
+                logError("error: cannot read/decode " + inputPath);
+                return false;
+            }
+            long decodeNs = SystemClock.elapsedRealtimeNanos();
+            mJobResult.putTiming("decodeMs", (decodeNs - startNs) / 1000000);
+            mJobResult.setDimensions(bitmap.getWidth(), bitmap.getHeight());
+            // 2. write bitmap into raw file
+            boolean result = writeBitmapToRawFile(bitmap, outputPath);
+            mJobResult.putTiming("writeMs", (SystemClock.elapsedRealtimeNanos() - decodeNs) / 1000000);
+            // 3. the raw writer is done with the bitmap
+            releaseBitmap(bitmap);
+            return result;
+        }
+    }
+
+    /**
+     * Decode an in-memory encoded image, and stream the raw frame to the
+     * output as its rows are converted (see ImageStreamProtocol). Errors
+     * are sent to the output too.
+     *
+     * @return true if the image was sent
+     * @throws IOException if the output fails
+     */
+    boolean performStreamDecode(Bundle parameters, byte[] encoded, DataOutputStream out) throws IOException {
+        mInputParameters = parameters;
+        mJobResult = new JobResult(JobReport.STAGE_CLOCK);
+        mRawFileWriter.setStageTimings(mJobResult.getStageTimings());
+        try {
+            // 1. get the output pixel format
+            RawPixelFormat format = getRawPixelFormat();
+            if (format == null || !setupRawFileWriter(format)) {
+                ImageStreamProtocol.writeError(out, mJobResult.getError());
+                return false;
+            }
+            if (mInputParameters.containsKey(CliSettings.INPREFERREDCOLORSPACE) &&
+                    android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O &&
+                    getPreferredColorSpace() == null) {
+                ImageStreamProtocol.writeError(out, mJobResult.getError());
+                return false;
+            }
+            // 2. decode the image (same options as decoding a file)
+            StageTimings.Split split = startStage();
+            Bitmap bitmap;
+            try {
+                bitmap = decodeEncodedArrayToBitmap(encoded, encoded.length);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // corrupt input or bad dimensions: fail this request only
+                logError("error: cannot decode image (" + encoded.length + " bytes): " + e);
+                ImageStreamProtocol.writeError(out, "cannot decode image (" + encoded.length + " bytes): " + e);
+                return false;
+            }
+            recordStage("decode", split);
+            if (bitmap == null) {
+                ImageStreamProtocol.writeError(out, "cannot decode image (" + encoded.length + " bytes)");
+                return false;
+            }
+            // 3. stream the raw frame
+            try {
+                int width = bitmap.getWidth();
+                int height = bitmap.getHeight();
+                ImageStreamProtocol.writeHeader(out, format.getName(), width, height, format.getFrameSize(width, height));
+                mRawFileWriter.write(new BitmapRowSource(bitmap), new ImageStreamProtocol.ChunkSink(out));
+                ImageStreamProtocol.writeEnd(out);
+                putMemoryPeak("rawWriterBufferBytes", mRawFileWriter.getBufferBytes());
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // the frame is partly sent, so an error response cannot
+                // follow: drop the connection
+                throw new IOException("cannot stream frame: " + e, e);
+            } finally {
+                releaseBitmap(bitmap);
+            }
+            return true;
+        } finally {
+            mRawFileWriter.setStageTimings(null);
+            mJobResult = null;
+        }
+    }
+
+    /**
+     * Read the encoded input of a decode job into memory (see
+     * ThroughputBenchmark).
+     *
+     * @return the file contents, or null on error
+     */
+    byte[] loadEncodedInput(Bundle parameters) {
+        mInputParameters = parameters;
+        if (!checkParameters()) {
+            return null;
+        }
+        File file = new File(mInputParameters.getString(CliSettings.INPUT));
+        if (file.length() > Integer.MAX_VALUE) {
+            logError("error: file too large: " + file.getPath());
+            return null;
+        }
+        byte[] encoded = new byte[(int) file.length()];
+        try {
+            readFileToArray(file, encoded, encoded.length);
+        } catch (IOException e1) {
+            logError(e1);
+            return null;
+        }
+        return encoded;
+    }
+
+    /**
+     * Read the raw input of an encode job into a bitmap (see
+     * ThroughputBenchmark).
+     *
+     * @return the bitmap, or null on error
+     */
+    Bitmap loadRawInput(Bundle parameters) {
+        mInputParameters = parameters;
+        if (!checkParameters()) {
+            return null;
+        }
+        int[] dimensions = getRawDimensions();
+        if (dimensions == null) {
+            return null;
+        }
+        return readRawFileToBitmap(mInputParameters.getString(CliSettings.INPUT), dimensions[0], dimensions[1]);
+    }
+
+    /**
+     * Decode an in-memory encoded image, and drop the bitmap (see
+     * ThroughputBenchmark).
+     *
+     * @return the number of pixels decoded, or -1 on error
+     */
+    long decodeInMemory(Bundle parameters, byte[] encoded) {
+        mInputParameters = parameters;
+        Bitmap bitmap = decodeEncodedArrayToBitmap(encoded, encoded.length);
+        if (bitmap == null) {
+            logError("error: cannot decode " + mInputParameters.getString(CliSettings.INPUT));
+            return -1;
+        }
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        disposeBitmap(bitmap);
+        return pixels;
+    }
+
+    /**
+     * Encode a bitmap into the (reused) in-memory buffer (see
+     * ThroughputBenchmark). The bitmap is not modified, so several
+     * threads can encode the same bitmap.
+     *
+     * @return the encoded size, or -1 on error
+     */
+    long encodeInMemory(Bundle parameters, Bitmap bitmap) {
+        mInputParameters = parameters;
+        CompressFormat compressFormat = getCompressFormat();
+        int compressQuality = getCompressQuality();
+        if (compressFormat == null || compressQuality < 0) {
+            return -1;
+        }
+        mEncodedBuffer.reset();
+        if (!bitmap.compress(compressFormat, compressQuality, mEncodedBuffer)) {
+            logError("error: cannot encode bitmap");
+            return -1;
+        }
+        return mEncodedBuffer.size();
+    }
+
+    void setJob(ImageCodecPipeline.Job job) {
+        mInputParameters = job.mParameters;
+        mJobResult = job.mJobResult;
+    }
+
+    private void reportStartup() {
+        // time from the process start to the first decode call (i.e. what
+        // a CLI run pays before the codec work starts)
+        if (!mStartupReported.compareAndSet(false, true)) {
+            return;
+        }
+        long startupMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        Log.i(TAG, "startup: entry: " + mEntryPoint + " process start to first decode: " + startupMs + " ms");
+        if (mJobResult != null) {
+            mJobResult.putTiming("startupMs", startupMs);
+        }
+    }
+
+    // IterationPass: a single (warmup or timed) pass of a job
+    private interface IterationPass {
+        boolean run();
+    }
+
+    /**
+     * Run warmup passes, then timed passes, and report the timing
+     * statistics of the timed passes.
+     *
+     * @return false if a pass failed
+     */
+    private boolean runIterations(int warmup, int iterations, IterationPass pass) {
+        TimingStats stats = timePasses(warmup, iterations, pass);
+        if (stats == null) {
+            return false;
+        }
+        Log.d(TAG, "runIterations: warmup: " + warmup + " " + stats);
+        mJobResult.setIterations(warmup, stats);
+        return true;
+    }
+
+    /**
+     * Run warmup passes, then timed passes.
+     *
+     * @return the timing statistics of the timed passes, or null if a
+     *         pass failed
+     */
+    private TimingStats timePasses(int warmup, int iterations, IterationPass pass) {
+        long[] samplesNs = new long[iterations];
+        for (int i = 0; i < warmup + iterations; i++) {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            if (!pass.run()) {
+                return null;
+            }
+            long passNs = SystemClock.elapsedRealtimeNanos() - startNs;
+            if (i >= warmup) {
+                samplesNs[i - warmup] = passNs;
+            }
+        }
+        return new TimingStats(samplesNs);
+    }
+
+    private boolean isIterationWriteEnabled() {
+        return mInputParameters.getString(CliSettings.ITERATIONWRITE, "0").equals("1");
+    }
+
+    private boolean encodeIterations(String inputPath, final String outputPath, int width, int height, int warmup, int iterations) {
+        // 1. read the raw file once
+        final Bitmap bitmap = readRawFileToBitmap(inputPath, width, height);
+        if (bitmap == null) {
+            logError("error: cannot read " + inputPath);
+            return false;
+        }
+        try {
+            final CompressFormat compressFormat = getCompressFormat();
+            final int compressQuality = getCompressQuality();
+            if (compressFormat == null || compressQuality < 0) {
+                return false;
+            }
+            // 2. encode it (into memory, unless every pass writes the output)
+            final boolean writeAll = isIterationWriteEnabled();
+            boolean result = runIterations(warmup, iterations, new IterationPass() {
+                @Override
+                public boolean run() {
+                    if (writeAll) {
+                        return writeBitmapToEncodedFile(bitmap, outputPath);
+                    }
+                    StageTimings.Split split = startStage();
+                    mEncodedBuffer.reset();
+                    if (!bitmap.compress(compressFormat, compressQuality, mEncodedBuffer)) {
+                        logError("error: cannot encode bitmap");
+                        return false;
+                    }
+                    recordStage("encode", split);
+                    return true;
+                }
+            });
+            // 3. write the output once (untimed)
+            return result && (writeAll || writeBitmapToEncodedFile(bitmap, outputPath));
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Encode the raw input (read once) with every (format, quality)
+     * point of the sweep, reporting the encoded size, the encode time,
+     * and the bits per pixel of every point. The output gets the sweep
+     * table (CSV), and the result file the "sweep" array.
+     */
+    private boolean encodeSweep(String inputPath, String outputPath, int width, int height, int warmup, int iterations) {
+        // 1. get the sweep points
+        List<CompressFormat> compressFormats = getSweepFormats();
+        int[] compressQualities = getSweepQualities();
+        if (compressFormats == null || compressQualities == null) {
+            return false;
+        }
+        boolean sweepWrite = mInputParameters.getString(CliSettings.SWEEPWRITE, "0").equals("1");
+        String sweepPath = mInputParameters.getString(CliSettings.OUTPUT);
+
+        // 2. read the raw file once
+        final Bitmap bitmap = readRawFileToBitmap(inputPath, width, height);
+        if (bitmap == null) {
+            logError("error: cannot read " + inputPath);
+            return false;
+        }
+        StringBuilder table = new StringBuilder("format,quality,bytes,bitsPerPixel,encodeMs\n");
+        try {
+            // 3. encode every point into memory
+            for (final CompressFormat compressFormat : compressFormats) {
+                for (final int compressQuality : compressQualities) {
+                    TimingStats stats = timePasses(warmup, Math.max(1, iterations), new IterationPass() {
+                        @Override
+                        public boolean run() {
+                            StageTimings.Split split = startStage();
+                            mEncodedBuffer.reset();
+                            if (!bitmap.compress(compressFormat, compressQuality, mEncodedBuffer)) {
+                                logError("error: cannot encode bitmap as " + compressFormat + " quality " + compressQuality);
+                                return false;
+                            }
+                            recordStage("encode", split);
+                            return true;
+                        }
+                    });
+                    if (stats == null) {
+                        return false;
+                    }
+                    long bytes = mEncodedBuffer.size();
+                    double bitsPerPixel = 8.0 * bytes / ((long) width * height);
+                    mJobResult.addSweepPoint(compressFormat.name(), compressQuality, bytes, bitsPerPixel, stats);
+                    String line = compressFormat.name() + "," + compressQuality + "," + bytes + "," + String.format(Locale.US, "%.4f,%.3f", bitsPerPixel, stats.getMedianNs() / 1e6);
+                    Log.d(TAG, "encodeSweep: " + line);
+                    table.append(line).append("\n");
+                    // 4. write the encoded file (optional)
+                    if (sweepWrite && !writeEncodedBuffer(sweepPath + "." + compressFormat.name().toLowerCase() + ".q" + compressQuality)) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            bitmap.recycle();
+            putMemoryPeak("encodedBufferBytes", mEncodedBuffer.getBuffer().length);
+        }
+        // 5. write the sweep table as the output
+        try (FileOutputStream fileOutputStream = new FileOutputStream(outputPath)) {
+            fileOutputStream.write(table.toString().getBytes());
+        } catch (IOException e1) {
+            logError(e1);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeEncodedBuffer(String path) {
+        try (FileOutputStream fileOutputStream = new FileOutputStream(OutputFiles.getTempPath(path))) {
+            fileOutputStream.write(mEncodedBuffer.getBuffer(), 0, mEncodedBuffer.size());
+        } catch (IOException e1) {
+            logError(e1);
+            OutputFiles.discard(path);
+            return false;
+        }
+        try {
+            OutputFiles.commit(path);
+        } catch (IOException e1) {
+            logError(e1);
+            return false;
+        }
+        return true;
+    }
+
+    private List<CompressFormat> getSweepFormats() {
+        String formatsStr = mInputParameters.getString(CliSettings.SWEEPFORMATS);
+        List<CompressFormat> compressFormats = new ArrayList<>();
+        if (formatsStr.equals("all")) {
+            compressFormats.add(CompressFormat.JPEG);
+            compressFormats.add(CompressFormat.PNG);
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.R) {
+                compressFormats.add(CompressFormat.WEBP_LOSSY);
+                compressFormats.add(CompressFormat.WEBP_LOSSLESS);
+            } else {
+                compressFormats.add(getLegacyWebpFormat());
+            }
+            return compressFormats;
+        }
+        for (String name : formatsStr.split(",")) {
+            try {
+                compressFormats.add(CompressFormat.valueOf(name.trim()));
+            } catch (IllegalArgumentException e1) {
+                logError("error: invalid sweepFormats parameter: " + formatsStr);
+                return null;
+            }
+        }
+        return compressFormats;
+    }
+
+    // WEBP is deprecated (by WEBP_LOSSY and WEBP_LOSSLESS) since R, but
+    // it is the only webp format before it
+    @SuppressWarnings("deprecation")
+    private static CompressFormat getLegacyWebpFormat() {
+        return CompressFormat.WEBP;
+    }
+
+    private int[] getSweepQualities() {
+        String qualitiesStr = mInputParameters.getString(CliSettings.SWEEPQUALITIES, "0-100:10");
+        List<Integer> qualities = new ArrayList<>();
+        try {
+            if (qualitiesStr.contains("-")) {
+                // range (start-end:step)
+                String[] rangeStep = qualitiesStr.split(":");
+                String[] range = rangeStep[0].split("-");
+                int start = Integer.parseInt(range[0].trim());
+                int end = Integer.parseInt(range[1].trim());
+                int step = (rangeStep.length > 1) ? Integer.parseInt(rangeStep[1].trim()) : 10;
+                if (range.length != 2 || rangeStep.length > 2 || step <= 0) {
+                    throw new IllegalArgumentException();
+                }
+                for (int quality = start; quality <= end; quality += step) {
+                    qualities.add(quality);
+                }
+            } else {
+                // list
+                for (String quality : qualitiesStr.split(",")) {
+                    qualities.add(Integer.parseInt(quality.trim()));
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            logError("error: invalid sweepQualities parameter: " + qualitiesStr);
+            return null;
+        }
+        if (qualities.isEmpty()) {
+            logError("error: invalid sweepQualities parameter: " + qualitiesStr);
+            return null;
+        }
+        int[] compressQualities = new int[qualities.size()];
+        for (int i = 0; i < compressQualities.length; i++) {
+            compressQualities[i] = qualities.get(i);
+            if (compressQualities[i] < 0 || compressQualities[i] > 100) {
+                logError("error: invalid sweepQualities parameter: " + qualitiesStr);
+                return null;
+            }
+        }
+        return compressQualities;
+    }
+
+    private boolean decodeIterations(String inputPath, final String outputPath, int warmup, int iterations) {
+        // 1. read the encoded file once
+        final int length;
+        StageTimings.Split split = startStage();
+        try {
+            length = readFileToEncodedInputArray(new File(inputPath));
+        } catch (IOException e1) {
+            logError(e1);
+            return false;
+        }
+        recordStage("read", split);
+        putMemoryPeak("encodedInputBytes", mEncodedInputArray.length);
+        // 2. decode it from memory (the last bitmap is kept for the output)
+        final boolean writeAll = isIterationWriteEnabled();
+        final Bitmap[] lastBitmap = new Bitmap[1];
+        boolean result = runIterations(warmup, iterations, new IterationPass() {
+            @Override
+            public boolean run() {
+                if (lastBitmap[0] != null) {
+                    disposeBitmap(lastBitmap[0]);
+                    lastBitmap[0] = null;
+                }
+                StageTimings.Split split = startStage();
+                Bitmap bitmap = decodeEncodedArrayToBitmap(mEncodedInputArray, length);
+                recordStage("decode", split);
+                if (bitmap == null) {
+                    logError("error: cannot decode " + inputPath);
+                    return false;
+                }
+                lastBitmap[0] = bitmap;
+                return !writeAll || writeBitmapToRawFile(bitmap, outputPath);
+            }
+        });
+        if (lastBitmap[0] == null) {
+            return false;
+        }
+        mJobResult.setDimensions(lastBitmap[0].getWidth(), lastBitmap[0].getHeight());
+        // 3. write the output once (untimed)
+        result = result && (writeAll || writeBitmapToRawFile(lastBitmap[0], outputPath));
+        disposeBitmap(lastBitmap[0]);
+        return result;
+    }
+
+    private void disposeBitmap(Bitmap bitmap) {
+        // pooled bitmaps go back to the pool
+        if (getBitmapPool() != null) {
+            releaseBitmap(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Get a non-negative integer parameter.
+     *
+     * @return the value, or -1 if invalid
+     */
+    private int getCountParameter(String key, int defaultValue) {
+        String valueStr = mInputParameters.getString(key, String.valueOf(defaultValue));
+        int value = -1;
+        try {
+            value = Integer.parseInt(valueStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError("error: invalid " + key + " parameter: " + valueStr);
+            return -1;
+        }
+        if (value < 0) {
+            logError("error: invalid " + key + " parameter: " + valueStr);
+            return -1;
+        }
+        return value;
+    }
+
+    boolean checkParameters() {
+        // we need a single encode or decode function
+        if ((! mInputParameters.containsKey(CliSettings.ENCODE)) && (! mInputParameters.containsKey(CliSettings.DECODE))) {
+            logError("error: need to specify either a \"encode\" or a \"decode\" parameter");
+            return false;
+        }
+        if ((mInputParameters.containsKey(CliSettings.ENCODE)) && (mInputParameters.containsKey(CliSettings.DECODE))) {
+            logError("error: need to specify only one parameter in \"encode\" and \"decode\"");
+            return false;
+        }
+
+        // we need an input file
+        if (! mInputParameters.containsKey(CliSettings.INPUT)) {
+            logError("error: need to specify an \"input\" paramter");
+            return false;
+        }
+
+        // we need an output file
+        if (! mInputParameters.containsKey(CliSettings.OUTPUT)) {
+            logError("error: need to specify an \"output\" paramter");
+            return false;
+        }
+
+        // check the color space before doing any work
+        if (mInputParameters.containsKey(CliSettings.INPREFERREDCOLORSPACE) &&
+                android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O &&
+                getPreferredColorSpace() == null) {
+            return false;
+        }
+        return true;
+    }
+
+    int[] getRawDimensions() {
+        // for raw images, we need both width and height
+        if ((! mInputParameters.containsKey(CliSettings.WIDTH)) || (! mInputParameters.containsKey(CliSettings.HEIGHT))) {
+            logError("error: need to specify both a \"width\" and a \"height\" parameter");
+            return null;
+        }
+        int width = 0;
+        int height = 0;
+        String widthStr = mInputParameters.getString(CliSettings.WIDTH, "0");
+        try {
+            width = Integer.parseInt(widthStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError("error: invalid width parameter: " + widthStr);
+            return null;
+        }
+        String heightStr = mInputParameters.getString(CliSettings.HEIGHT, "0");
+        try {
+            height = Integer.parseInt(heightStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError("error: invalid height parameter: " + heightStr);
+            return null;
+        }
+        return new int[] {width, height};
+    }
+
+    private StageTimings getStageTimings() {
+        return (mJobResult != null) ? mJobResult.getStageTimings() : null;
+    }
+
+    /**
+     * Start measuring a stage of the running job (null if there is no
+     * job result).
+     */
+    private StageTimings.Split startStage() {
+        StageTimings stageTimings = getStageTimings();
+        return (stageTimings != null) ? stageTimings.start() : null;
+    }
+
+    /**
+     * Record the stage time since the split started, and restart it.
+     * Stage ends are also where the heap peaks are sampled.
+     */
+    private void recordStage(String stage, StageTimings.Split split) {
+        StageTimings stageTimings = getStageTimings();
+        if (stageTimings != null && split != null) {
+            stageTimings.lap(stage, split);
+            JobReport.sampleMemory(mJobResult);
+        }
+    }
+
+    private void putMemory(String name, long bytes) {
+        if (mJobResult != null) {
+            mJobResult.putMemory(name, bytes);
+        }
+    }
+
+    void putMemoryPeak(String name, long bytes) {
+        if (mJobResult != null) {
+            mJobResult.putMemoryPeak(name, bytes);
+        }
+    }
+
+    void recordBitmapMemory(Bitmap bitmap) {
+        // size of the largest bitmap of the job
+        if (bitmap != null) {
+            putMemoryPeak("bitmapBytes", bitmap.getAllocationByteCount());
+        }
+    }
+
+    void logError(String message) {
+        Log.e(TAG, message);
+        if (mJobResult != null) {
+            mJobResult.setError(message);
+        }
+    }
+
+    void logError(Throwable throwable) {
+        Log.e(TAG, "error: " + throwable, throwable);
+        if (mJobResult != null) {
+            mJobResult.setError(throwable.toString());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.facebook.imgapp;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.BaselineComparison;
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.JobResult;
+import com.facebook.imgapp.utils.LatencyHistograms;
+import com.facebook.imgapp.utils.StageTimings;
+
+import java.io.File;
+import java.io.IOException;
+
+
+// JobReport: fills and writes the JobResult of a job (the same for jobs
+// run whole, in a pipeline, or in a throughput benchmark): memory peaks,
+// baseline comparison, latency histograms, and the result file.
+class JobReport {
+    private final static String TAG = "imgapp.test";
+
+    // clock for the job stage timings (wall and calling thread CPU time)
+    static final StageTimings.Clock STAGE_CLOCK = new StageTimings.Clock() {
+        @Override
+        public long getWallNs() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public long getCpuNs() {
+            return Debug.threadCpuTimeNanos();
+        }
+    };
+
+
+    /**
+     * Compare the job timings against the baseline result file.
+     *
+     * @return false if the job regressed, or the comparison failed
+     */
+    static boolean compareBaseline(Bundle parameters, JobResult jobResult) {
+        String baselinePath = parameters.getString(CliSettings.BASELINE);
+        String thresholdStr = parameters.getString(CliSettings.REGRESSIONTHRESHOLD, String.valueOf(BaselineComparison.DEFAULT_THRESHOLD_PERCENT));
+        double thresholdPercent;
+        try {
+            thresholdPercent = Double.parseDouble(thresholdStr);
+        } catch (java.lang.NumberFormatException ex) {
+            Log.e(TAG, "error: invalid regressionThreshold parameter: " + thresholdStr);
+            jobResult.setError("invalid regressionThreshold parameter: " + thresholdStr);
+            jobResult.setStatus(false);
+            return false;
+        }
+        BaselineComparison comparison;
+        try {
+            comparison = new BaselineComparison(BaselineComparison.readResult(baselinePath), jobResult.toJson(), thresholdPercent);
+        } catch (IOException e1) {
+            Log.e(TAG, "error: cannot read baseline file " + baselinePath + ": " + e1.getMessage());
+            jobResult.setError("cannot read baseline file " + baselinePath + ": " + e1.getMessage());
+            jobResult.setStatus(false);
+            return false;
+        }
+        if (comparison.getMetrics().isEmpty()) {
+            // nothing to compare (e.g. no warmup/iterations in either run)
+            Log.e(TAG, "error: no timing samples in both " + baselinePath + " and the job result");
+            jobResult.setError("no timing samples to compare against baseline " + baselinePath);
+            jobResult.setStatus(false);
+            return false;
+        }
+        Log.d(TAG, "baseline comparison (" + baselinePath + "):\n" + comparison);
+        jobResult.setComparison(comparison);
+        if (comparison.hasRegression()) {
+            Log.e(TAG, "error: regression over " + thresholdPercent + "% against baseline " + baselinePath);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record the stage latencies ("<stage>/<format>") and the total
+     * latency ("total/<format>") of a job.
+     */
+    static void recordLatency(LatencyHistograms latencyHistograms, Bundle parameters, JobResult jobResult, long totalNs) {
+        LatencyHistograms.FormatHistograms histograms = latencyHistograms.getFormat(getLatencyFormat(parameters));
+        histograms.recordStages(jobResult.getStageTimings());
+        histograms.get("total").record(totalNs);
+    }
+
+    /**
+     * Get the format of a job, for the latency histograms: the compress
+     * format for encodes, and the input file extension for decodes.
+     */
+    static String getLatencyFormat(Bundle parameters) {
+        if (parameters.containsKey(CliSettings.ENCODE)) {
+            return parameters.getString(CliSettings.COMPRESSFORMAT, "PNG");
+        }
+        String name = new File(parameters.getString(CliSettings.INPUT, "")).getName();
+        int dot = name.lastIndexOf('.');
+        return (dot >= 0) ? name.substring(dot + 1).toLowerCase() : "unknown";
+    }
+
+    /**
+     * Write the job result file ("result" parameter, or next to the
+     * output).
+     */
+    static void writeJobResult(Bundle parameters, JobResult jobResult) {
+        String resultPath = parameters.getString(CliSettings.RESULT, null);
+        if (resultPath == null && parameters.containsKey(CliSettings.OUTPUT)) {
+            resultPath = parameters.getString(CliSettings.OUTPUT) + ".json";
+        }
+        if (resultPath == null) {
+            Log.e(TAG, "error: no result path (need \"output\" or \"result\")");
+            return;
+        }
+        jobResult.setPaths(parameters.getString(CliSettings.INPUT), parameters.getString(CliSettings.OUTPUT));
+        try {
+            jobResult.write(resultPath);
+        } catch (IOException e1) {
+            Log.e(TAG, "error: cannot write result file " + resultPath + ": " + e1.getMessage());
+        }
+    }
+
+    /**
+     * Update the java and native heap peaks of the job. Note that the
+     * bitmap pixels live in the native heap (API 26+).
+     */
+    static void sampleMemory(JobResult jobResult) {
+        Runtime runtime = Runtime.getRuntime();
+        jobResult.putMemoryPeak("javaHeapPeakBytes", runtime.totalMemory() - runtime.freeMemory());
+        jobResult.putMemoryPeak("nativeHeapPeakBytes", Debug.getNativeHeapAllocatedSize());
+    }
+}
@@ -0,0 +1,184 @@
+package com.facebook.imgapp;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+import com.facebook.imgapp.utils.BitmapRowSource;
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.ExposedByteArrayOutputStream;
+import com.facebook.imgapp.utils.OutputFiles;
+import com.facebook.imgapp.utils.RawPixelFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+// PipelineStages: the stages of ImageCodecPipeline (read, decode,
+// convert, write). Every pipeline worker thread has its own object, which
+// uses the buffers, bitmap pool, and parameter checks of its own
+// ImageCodecTest.
+class PipelineStages {
+    private final ImageCodecTest mImageCodecTest = new ImageCodecTest();
+
+    /**
+     * Pipeline read stage: read the input file into memory.
+     *
+     * Jobs that the pipeline cannot split (band decodes) are left for
+     * the decode stage, which runs them whole.
+     *
+     * @return true if the job succeeded so far
+     */
+    boolean performReadStage(ImageCodecPipeline.Job job) {
+        mImageCodecTest.setJob(job);
+        if (!mImageCodecTest.checkParameters()) {
+            return false;
+        }
+        String inputPath = job.mParameters.getString(CliSettings.INPUT);
+        File file = new File(inputPath);
+        if (job.mParameters.containsKey(CliSettings.ENCODE)) {
+            int[] dimensions = mImageCodecTest.getRawDimensions();
+            if (dimensions == null) {
+                return false;
+            }
+            job.mWidth = dimensions[0];
+            job.mHeight = dimensions[1];
+            job.mJobResult.setDimensions(job.mWidth, job.mHeight);
+            long expectedLength = 4L * job.mWidth * job.mHeight;
+            if (file.length() != expectedLength) {
+                mImageCodecTest.logError("error: raw file " + inputPath + " has " + file.length() + " bytes (expected " + expectedLength + " bytes for " + job.mWidth + "x" + job.mHeight + " packed RGBA)");
+                return false;
+            }
+        } else if (!job.mParameters.getString(CliSettings.DECODEMODE, "full").equals("full")) {
+            return true;
+        }
+        if (file.length() > Integer.MAX_VALUE) {
+            mImageCodecTest.logError("error: file too large: " + inputPath);
+            return false;
+        }
+        int length = (int) file.length();
+        job.mInput = new byte[length];
+        try {
+            ImageCodecTest.readFileToArray(file, job.mInput, length);
+        } catch (IOException e1) {
+            mImageCodecTest.logError(e1);
+            return false;
+        }
+        mImageCodecTest.putMemoryPeak("inputArrayBytes", length);
+        return true;
+    }
+
+    /**
+     * Pipeline decode stage: turn the input into a bitmap (or run the
+     * whole job when the read stage did not read it).
+     *
+     * @return true if the job succeeded so far
+     */
+    boolean performDecodeStage(ImageCodecPipeline.Job job) {
+        mImageCodecTest.setJob(job);
+        if (job.mInput == null) {
+            job.mDone = true;
+            return mImageCodecTest.runJob(job.mJobResult);
+        }
+        if (job.mParameters.containsKey(CliSettings.ENCODE)) {
+            // the raw bytes are stored verbatim (see
+            // ImageCodecTest.readRawFileToBitmap())
+            job.mBitmap = Bitmap.createBitmap(job.mWidth, job.mHeight, Bitmap.Config.ARGB_8888);
+            job.mBitmap.copyPixelsFromBuffer(ByteBuffer.wrap(job.mInput));
+            mImageCodecTest.recordBitmapMemory(job.mBitmap);
+        } else {
+            job.mBitmap = mImageCodecTest.decodeEncodedArrayToBitmap(job.mInput, job.mInput.length);
+            if (job.mBitmap == null) {
+                mImageCodecTest.logError("error: cannot decode " + job.mParameters.getString(CliSettings.INPUT));
+                return false;
+            }
+            job.mJobResult.setDimensions(job.mBitmap.getWidth(), job.mBitmap.getHeight());
+        }
+        job.mInput = null;
+        return true;
+    }
+
+    /**
+     * Pipeline convert stage: turn the bitmap into the output file
+     * contents (encoded image, or raw frame).
+     *
+     * @return true if the job succeeded so far
+     */
+    boolean performConvertStage(ImageCodecPipeline.Job job) {
+        mImageCodecTest.setJob(job);
+        Bitmap bitmap = job.mBitmap;
+        job.mBitmap = null;
+        try {
+            if (job.mParameters.containsKey(CliSettings.ENCODE)) {
+                CompressFormat compressFormat = mImageCodecTest.getCompressFormat();
+                int compressQuality = mImageCodecTest.getCompressQuality();
+                if (compressFormat == null || compressQuality < 0) {
+                    return false;
+                }
+                // the buffer is handed to the write stage, so it cannot be
+                // reused here
+                ExposedByteArrayOutputStream encodedBuffer = new ExposedByteArrayOutputStream();
+                if (!bitmap.compress(compressFormat, compressQuality, encodedBuffer)) {
+                    mImageCodecTest.logError("error: cannot encode bitmap");
+                    return false;
+                }
+                job.mOutput = ByteBuffer.wrap(encodedBuffer.getBuffer(), 0, encodedBuffer.size());
+                mImageCodecTest.putMemoryPeak("encodedBufferBytes", encodedBuffer.getBuffer().length);
+            } else {
+                RawPixelFormat format = mImageCodecTest.getRawPixelFormat();
+                if (format == null || !mImageCodecTest.setupRawFileWriter(format)) {
+                    return false;
+                }
+                long frameSize = format.getFrameSize(bitmap.getWidth(), bitmap.getHeight());
+                if (frameSize > Integer.MAX_VALUE) {
+                    mImageCodecTest.logError("error: raw frame too large: " + frameSize + " bytes");
+                    return false;
+                }
+                job.mOutput = ByteBuffer.allocateDirect((int) frameSize);
+                mImageCodecTest.mRawFileWriter.convert(new BitmapRowSource(bitmap), job.mOutput);
+                mImageCodecTest.putMemoryPeak("outputBufferBytes", frameSize);
+                mImageCodecTest.putMemoryPeak("rawWriterBufferBytes", mImageCodecTest.mRawFileWriter.getBufferBytes());
+            }
+        } finally {
+            if (job.mParameters.containsKey(CliSettings.ENCODE)) {
+                bitmap.recycle();
+            } else {
+                mImageCodecTest.releaseBitmap(bitmap);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pipeline write stage: write the output file contents.
+     *
+     * @return true if the job succeeded
+     */
+    boolean performWriteStage(ImageCodecPipeline.Job job) {
+        mImageCodecTest.setJob(job);
+        String outputPath = job.mParameters.getString(CliSettings.OUTPUT);
+        ByteBuffer output = job.mOutput;
+        job.mOutput = null;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(OutputFiles.getTempPath(outputPath))) {
+            FileChannel channel = fileOutputStream.getChannel();
+            while (output.hasRemaining()) {
+                channel.write(output);
+            }
+            if (mImageCodecTest.isFsyncEnabled()) {
+                fileOutputStream.getFD().sync();
+            }
+        } catch (IOException e1) {
+            mImageCodecTest.logError(e1);
+            return false;
+        }
+        try {
+            OutputFiles.commit(outputPath);
+        } catch (IOException e1) {
+            mImageCodecTest.logError(e1);
+            return false;
+        }
+        return true;
+    }
+}
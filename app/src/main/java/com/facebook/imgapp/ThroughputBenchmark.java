@@ -0,0 +1,286 @@
+package com.facebook.imgapp;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.imgapp.utils.CliSettings;
+import com.facebook.imgapp.utils.JobResult;
+import com.facebook.imgapp.utils.LatencyHistogram;
+import com.facebook.imgapp.utils.LatencyHistograms;
+import com.facebook.imgapp.utils.ThroughputCurve;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// ThroughputBenchmark: measures how the decode (or encode) throughput
+// scales with the number of concurrent workers.
+// The inputs (the manifest jobs, or the CLI job) are preloaded into
+// memory (encoded bytes for decodes, bitmaps for encodes), so storage
+// does not skew the results, and nothing is written. At every thread
+// count, the workers pull (input, round) items from a shared counter,
+// and the wall time of the whole set is measured, as well as the latency
+// of every image ("decode/<format>" or "encode/<format>" histograms).
+// $ adb shell am start -W -e decode a -e manifest /sdcard/jobs.json -e scalingThreads 8 -e result /sdcard/scaling.json com.facebook.imgapp/.HeadlessActivity
+class ThroughputBenchmark {
+    private final static String TAG = "imgapp.throughput";
+
+    // Input: a preloaded job input
+    private static class Input {
+        final Bundle mParameters;
+        // latency histogram name
+        final String mLatencyName;
+        // decode input
+        byte[] mEncoded = null;
+        // encode input (shared by the workers, which only read it)
+        Bitmap mBitmap = null;
+
+        Input(Bundle parameters) {
+            mParameters = parameters;
+            mLatencyName = (parameters.containsKey(CliSettings.ENCODE) ? "encode/" : "decode/") + JobReport.getLatencyFormat(parameters);
+        }
+    }
+
+    private final List<Input> mInputs = new ArrayList<>();
+    private final ThreadLocal<ImageCodecTest> mImageCodecTest = new ThreadLocal<ImageCodecTest>() {
+        @Override
+        protected ImageCodecTest initialValue() {
+            return new ImageCodecTest();
+        }
+    };
+
+
+    /**
+     * Run the throughput benchmark in the CLI parameters, and write the
+     * results ("scaling") to the result file.
+     *
+     * @return true if all the passes succeeded
+     */
+    static boolean run(Bundle parameters) {
+        JobResult jobResult = new JobResult(JobReport.STAGE_CLOCK);
+        ThroughputBenchmark benchmark = new ThroughputBenchmark();
+        boolean result = benchmark.runBenchmark(parameters, jobResult);
+        benchmark.release();
+        jobResult.setStatus(result);
+        JobReport.writeJobResult(parameters, jobResult);
+        return result;
+    }
+
+    private boolean runBenchmark(Bundle parameters, JobResult jobResult) {
+        // 1. get the parameters
+        int[] threadCounts = getThreadCounts(parameters, jobResult);
+        int rounds = getCount(parameters, CliSettings.SCALINGROUNDS, 1, 1, jobResult);
+        int warmup = getCount(parameters, CliSettings.WARMUP, 0, 0, jobResult);
+        if (threadCounts == null || rounds < 0 || warmup < 0) {
+            return false;
+        }
+
+        // 2. preload the inputs
+        List<Bundle> jobs;
+        try {
+            jobs = parameters.containsKey(CliSettings.MANIFEST) ?
+                    ImageCodecScheduler.readManifestJobs(parameters, parameters.getString(CliSettings.MANIFEST)) :
+                    Collections.singletonList(parameters);
+        } catch (IOException e) {
+            logError(jobResult, "error: cannot read manifest: " + e.getMessage());
+            return false;
+        }
+        ImageCodecTest loader = new ImageCodecTest();
+        for (Bundle job : jobs) {
+            Input input = new Input(job);
+            if (job.containsKey(CliSettings.ENCODE)) {
+                input.mBitmap = loader.loadRawInput(job);
+            } else {
+                input.mEncoded = loader.loadEncodedInput(job);
+            }
+            if (input.mBitmap == null && input.mEncoded == null) {
+                logError(jobResult, "error: cannot load input " + job.getString(CliSettings.INPUT));
+                return false;
+            }
+            mInputs.add(input);
+        }
+        int items = mInputs.size() * rounds;
+        Log.d(TAG, "throughput: inputs: " + mInputs.size() + " rounds: " + rounds + " warmup: " + warmup);
+
+        // 3. process all the items at every thread count
+        ThroughputCurve curve = new ThroughputCurve();
+        for (int threads : threadCounts) {
+            if (items < threads) {
+                Log.w(TAG, "throughput: only " + items + " items for " + threads + " threads (increase scalingRounds)");
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                // warmup passes (untimed)
+                for (int i = 0; i < warmup; i++) {
+                    runPass(executor, threads, items, null);
+                }
+                LatencyHistograms latency = new LatencyHistograms();
+                long startNs = SystemClock.elapsedRealtimeNanos();
+                long pixels = runPass(executor, threads, items, latency);
+                long wallNs = SystemClock.elapsedRealtimeNanos() - startNs;
+                curve.add(threads, items, pixels, wallNs, latency);
+                Log.i(TAG, "throughput: " + curve.toString(curve.size() - 1));
+            } catch (InterruptedException e) {
+                logError(jobResult, "error: " + e.getMessage());
+                return false;
+            } catch (ExecutionException e) {
+                logError(jobResult, "error: " + e.getCause());
+                return false;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        jobResult.setScaling(curve);
+
+        // 4. write the latency histograms (one per thread count)
+        if (parameters.containsKey(CliSettings.HISTOGRAM)) {
+            LatencyHistograms latencyHistograms = ImageCodecScheduler.createLatencyHistograms(parameters);
+            if (latencyHistograms == null) {
+                logError(jobResult, "error: cannot merge histogram files");
+                return false;
+            }
+            for (int i = 0; i < curve.size(); i++) {
+                latencyHistograms.add(curve.getLatency(i), "@" + curve.getThreads(i) + "t");
+            }
+            if (!ImageCodecScheduler.writeLatencyHistograms(parameters, latencyHistograms)) {
+                logError(jobResult, "error: cannot write histogram file");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Process all the items with the given number of workers.
+     *
+     * @param latency where to record the latency of every item (null to
+     *        disable)
+     * @return number of pixels processed
+     */
+    private long runPass(ExecutorService executor, int threads, final int items, final LatencyHistograms latency) throws InterruptedException, ExecutionException {
+        final AtomicInteger nextItem = new AtomicInteger(0);
+        final AtomicLong pixels = new AtomicLong(0);
+        // the histogram of every input, resolved before the timed loop
+        final LatencyHistogram[] histograms = new LatencyHistogram[mInputs.size()];
+        if (latency != null) {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = latency.get(mInputs.get(i).mLatencyName);
+            }
+        }
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    ImageCodecTest imageCodecTest = mImageCodecTest.get();
+                    for (int item = nextItem.getAndIncrement(); item < items; item = nextItem.getAndIncrement()) {
+                        Input input = mInputs.get(item % mInputs.size());
+                        long startNs = SystemClock.elapsedRealtimeNanos();
+                        if (input.mBitmap != null) {
+                            if (imageCodecTest.encodeInMemory(input.mParameters, input.mBitmap) < 0) {
+                                throw new IOException("cannot encode " + input.mParameters.getString(CliSettings.INPUT));
+                            }
+                            pixels.addAndGet((long) input.mBitmap.getWidth() * input.mBitmap.getHeight());
+                        } else {
+                            long decoded = imageCodecTest.decodeInMemory(input.mParameters, input.mEncoded);
+                            if (decoded < 0) {
+                                throw new IOException("cannot decode " + input.mParameters.getString(CliSettings.INPUT));
+                            }
+                            pixels.addAndGet(decoded);
+                        }
+                        if (latency != null) {
+                            histograms[item % histograms.length].record(SystemClock.elapsedRealtimeNanos() - startNs);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        return pixels.get();
+    }
+
+    private void release() {
+        for (Input input : mInputs) {
+            if (input.mBitmap != null) {
+                input.mBitmap.recycle();
+            }
+        }
+        mInputs.clear();
+    }
+
+    private static int[] getThreadCounts(Bundle parameters, JobResult jobResult) {
+        String threadsStr = parameters.getString(CliSettings.SCALINGTHREADS);
+        int[] threadCounts;
+        try {
+            if (threadsStr.contains(",")) {
+                // list
+                String[] values = threadsStr.split(",");
+                threadCounts = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    threadCounts[i] = Integer.parseInt(values[i].trim());
+                }
+            } else {
+                // maximum (1 to N)
+                int maxThreads = Integer.parseInt(threadsStr.trim());
+                threadCounts = new int[Math.max(0, maxThreads)];
+                for (int i = 0; i < threadCounts.length; i++) {
+                    threadCounts[i] = i + 1;
+                }
+            }
+        } catch (java.lang.NumberFormatException ex) {
+            logError(jobResult, "error: invalid scalingThreads parameter: " + threadsStr);
+            return null;
+        }
+        if (threadCounts.length == 0) {
+            logError(jobResult, "error: invalid scalingThreads parameter: " + threadsStr);
+            return null;
+        }
+        for (int threads : threadCounts) {
+            if (threads <= 0) {
+                logError(jobResult, "error: invalid scalingThreads parameter: " + threadsStr);
+                return null;
+            }
+        }
+        return threadCounts;
+    }
+
+    /**
+     * Get an integer parameter.
+     *
+     * @return the value, or -1 if invalid (or smaller than minValue)
+     */
+    private static int getCount(Bundle parameters, String key, int defaultValue, int minValue, JobResult jobResult) {
+        String valueStr = parameters.getString(key, String.valueOf(defaultValue));
+        int value = -1;
+        try {
+            value = Integer.parseInt(valueStr);
+        } catch (java.lang.NumberFormatException ex) {
+            logError(jobResult, "error: invalid " + key + " parameter: " + valueStr);
+            return -1;
+        }
+        if (value < minValue) {
+            logError(jobResult, "error: invalid " + key + " parameter: " + valueStr);
+            return -1;
+        }
+        return value;
+    }
+
+    private static void logError(JobResult jobResult, String message) {
+        Log.e(TAG, message);
+        jobResult.setError(message);
+    }
+}
@@ -0,0 +1,303 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// BaselineComparison: compares the timing samples of a result file (see
+// JobResult) against a stored baseline result file.
+// Every metric with repeated samples is compared: "iterations" (warmup
+// and iterations runs), and "sweep/<format>/q<quality>" (encode sweeps).
+// The delta is the difference of the means, relative to the baseline
+// mean, with a 95% confidence interval (Welch's t interval, as both runs
+// can have different variances and sample counts). A metric regresses
+// when the delta is over the threshold, and the confidence interval is
+// above 0 (i.e. the slowdown is significant). Metrics with a single
+// sample in either run have no interval, and regress on the delta alone.
+// Metrics with a zero baseline mean (e.g. all samples rounded to 0 ms)
+// have no relative delta, and are reported as not compared.
+// Timings are lower-is-better.
+// It can be run as a command:
+// $ java -cp ... com.facebook.imgapp.utils.BaselineComparison <baseline.json> <current.json> [thresholdPercent]
+// which exits with 0 (no regression), 1 (regression), or 2 (error).
+public class BaselineComparison {
+    public final static double DEFAULT_THRESHOLD_PERCENT = 5.0;
+    // two-sided 95% Student t quantiles (df 1 to 30), then for df 40,
+    // 60, 120, and infinity
+    private final static double[] T_QUANTILES = {
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+        2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+    private final static double T_QUANTILE_40 = 2.021;
+    private final static double T_QUANTILE_60 = 2.000;
+    private final static double T_QUANTILE_120 = 1.980;
+    private final static double T_QUANTILE_INFINITY = 1.960;
+
+    // Metric: comparison of a single metric
+    public static class Metric {
+        public final String mName;
+        public final int mBaselineCount;
+        public final int mCurrentCount;
+        public final double mBaselineMeanMs;
+        public final double mCurrentMeanMs;
+        public final double mDeltaPercent;
+        // confidence interval of the delta (NaN with a single sample)
+        public final double mCiLowPercent;
+        public final double mCiHighPercent;
+        public final boolean mRegression;
+
+        // the baseline mean must be positive (see BaselineComparison())
+        Metric(String name, TimingStats baseline, TimingStats current, double thresholdPercent) {
+            mName = name;
+            mBaselineCount = baseline.getCount();
+            mCurrentCount = current.getCount();
+            mBaselineMeanMs = baseline.getMeanNs() / 1e6;
+            mCurrentMeanMs = current.getMeanNs() / 1e6;
+            double baselineMean = baseline.getMeanNs();
+            double delta = current.getMeanNs() - baselineMean;
+            mDeltaPercent = 100.0 * delta / baselineMean;
+            if (mBaselineCount < 2 || mCurrentCount < 2) {
+                mCiLowPercent = Double.NaN;
+                mCiHighPercent = Double.NaN;
+                mRegression = mDeltaPercent > thresholdPercent;
+                return;
+            }
+            // Welch's t interval of the difference of the means
+            double baselineVariance = baseline.getStddevNs() * baseline.getStddevNs() / mBaselineCount;
+            double currentVariance = current.getStddevNs() * current.getStddevNs() / mCurrentCount;
+            double standardError = Math.sqrt(baselineVariance + currentVariance);
+            double margin = 0;
+            if (standardError > 0) {
+                double df = (baselineVariance + currentVariance) * (baselineVariance + currentVariance) /
+                        (baselineVariance * baselineVariance / (mBaselineCount - 1) + currentVariance * currentVariance / (mCurrentCount - 1));
+                margin = getTQuantile(df) * standardError;
+            }
+            mCiLowPercent = 100.0 * (delta - margin) / baselineMean;
+            mCiHighPercent = 100.0 * (delta + margin) / baselineMean;
+            mRegression = mDeltaPercent > thresholdPercent && mCiLowPercent > 0;
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("baselineCount", mBaselineCount);
+            json.addProperty("currentCount", mCurrentCount);
+            json.addProperty("baselineMeanMs", mBaselineMeanMs);
+            json.addProperty("currentMeanMs", mCurrentMeanMs);
+            json.addProperty("deltaPercent", mDeltaPercent);
+            if (!Double.isNaN(mCiLowPercent)) {
+                json.addProperty("ciLowPercent", mCiLowPercent);
+                json.addProperty("ciHighPercent", mCiHighPercent);
+            }
+            json.addProperty("regression", mRegression);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            String ci = Double.isNaN(mCiLowPercent) ? "n/a" :
+                    String.format(Locale.US, "[%+.2f%%, %+.2f%%]", mCiLowPercent, mCiHighPercent);
+            return String.format(Locale.US, "%s: baseline: %.3f ms (n: %d) current: %.3f ms (n: %d) delta: %+.2f%% ci95: %s%s",
+                    mName, mBaselineMeanMs, mBaselineCount, mCurrentMeanMs, mCurrentCount, mDeltaPercent, ci,
+                    mRegression ? " REGRESSION" : "");
+        }
+    }
+
+    private final double mThresholdPercent;
+    private final List<Metric> mMetrics = new ArrayList<>();
+    // metrics found in only one of the results
+    private final List<String> mUnmatched = new ArrayList<>();
+    // metrics with a zero baseline mean
+    private final List<String> mZeroBaseline = new ArrayList<>();
+
+
+    /**
+     * Compare a result against a baseline.
+     *
+     * @param baseline baseline result (JobResult JSON)
+     * @param current current result (JobResult JSON)
+     * @param thresholdPercent largest accepted slowdown (in %)
+     */
+    public BaselineComparison(JsonObject baseline, JsonObject current, double thresholdPercent) {
+        mThresholdPercent = thresholdPercent;
+        Map<String, TimingStats> baselineSamples = getSamples(baseline);
+        Map<String, TimingStats> currentSamples = getSamples(current);
+        for (Map.Entry<String, TimingStats> entry : currentSamples.entrySet()) {
+            TimingStats baselineStats = baselineSamples.get(entry.getKey());
+            if (baselineStats == null) {
+                mUnmatched.add(entry.getKey());
+            } else if (baselineStats.getMeanNs() <= 0) {
+                mZeroBaseline.add(entry.getKey());
+            } else {
+                mMetrics.add(new Metric(entry.getKey(), baselineStats, entry.getValue(), thresholdPercent));
+            }
+        }
+        for (String name : baselineSamples.keySet()) {
+            if (!currentSamples.containsKey(name)) {
+                mUnmatched.add(name);
+            }
+        }
+    }
+
+    public List<Metric> getMetrics() {
+        return new ArrayList<>(mMetrics);
+    }
+
+    public boolean hasRegression() {
+        for (Metric metric : mMetrics) {
+            if (metric.mRegression) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("thresholdPercent", mThresholdPercent);
+        json.addProperty("regression", hasRegression());
+        JsonObject metrics = new JsonObject();
+        for (Metric metric : mMetrics) {
+            metrics.add(metric.mName, metric.toJson());
+        }
+        json.add("metrics", metrics);
+        if (!mUnmatched.isEmpty()) {
+            JsonArray unmatched = new JsonArray();
+            for (String name : mUnmatched) {
+                unmatched.add(name);
+            }
+            json.add("unmatched", unmatched);
+        }
+        if (!mZeroBaseline.isEmpty()) {
+            JsonArray zeroBaseline = new JsonArray();
+            for (String name : mZeroBaseline) {
+                zeroBaseline.add(name);
+            }
+            json.add("zeroBaseline", zeroBaseline);
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder();
+        for (Metric metric : mMetrics) {
+            string.append(metric).append("\n");
+        }
+        for (String name : mUnmatched) {
+            string.append(name).append(": only in one of the results\n");
+        }
+        for (String name : mZeroBaseline) {
+            string.append(name).append(": baseline mean is 0 (not compared)\n");
+        }
+        return string.toString();
+    }
+
+    /**
+     * Read a result file.
+     *
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static JsonObject readResult(String path) throws IOException {
+        try (Reader reader = new FileReader(path)) {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("invalid result file: " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the timing samples of every metric of a result.
+     */
+    static Map<String, TimingStats> getSamples(JsonObject result) {
+        Map<String, TimingStats> samples = new LinkedHashMap<>();
+        if (result.has("iterations")) {
+            putSamples(samples, "iterations", result.getAsJsonObject("iterations"));
+        }
+        if (result.has("sweep")) {
+            for (JsonElement element : result.getAsJsonArray("sweep")) {
+                JsonObject point = element.getAsJsonObject();
+                String name = "sweep/" + point.get("format").getAsString() + "/q" + point.get("quality").getAsInt();
+                putSamples(samples, name, point.getAsJsonObject("encode"));
+            }
+        }
+        return samples;
+    }
+
+    private static void putSamples(Map<String, TimingStats> samples, String name, JsonObject stats) {
+        if (stats == null || !stats.has("samplesMs")) {
+            return;
+        }
+        JsonArray samplesMs = stats.getAsJsonArray("samplesMs");
+        if (samplesMs.size() == 0) {
+            return;
+        }
+        long[] samplesNs = new long[samplesMs.size()];
+        for (int i = 0; i < samplesNs.length; i++) {
+            samplesNs[i] = Math.round(samplesMs.get(i).getAsDouble() * 1e6);
+        }
+        samples.put(name, new TimingStats(samplesNs));
+    }
+
+    /**
+     * Get the two-sided 95% Student t quantile. Fractional degrees of
+     * freedom are rounded down (i.e. the interval is slightly wider).
+     */
+    static double getTQuantile(double df) {
+        if (df < 1) {
+            return T_QUANTILES[0];
+        } else if (df < T_QUANTILES.length + 1) {
+            return T_QUANTILES[(int) df - 1];
+        } else if (df < 40) {
+            return T_QUANTILES[T_QUANTILES.length - 1];
+        } else if (df < 60) {
+            return T_QUANTILE_40;
+        } else if (df < 120) {
+            return T_QUANTILE_60;
+        } else if (df < Double.POSITIVE_INFINITY) {
+            return T_QUANTILE_120;
+        }
+        return T_QUANTILE_INFINITY;
+    }
+
+    /**
+     * Run the command.
+     *
+     * @return exit code: 0 (no regression), 1 (regression), or 2 (error)
+     */
+    static int run(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: BaselineComparison <baseline.json> <current.json> [thresholdPercent]");
+            return 2;
+        }
+        try {
+            double thresholdPercent = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+            BaselineComparison comparison = new BaselineComparison(readResult(args[0]), readResult(args[1]), thresholdPercent);
+            System.out.print(comparison);
+            System.out.println(new Gson().toJson(comparison.toJson()));
+            if (comparison.getMetrics().isEmpty()) {
+                System.err.println("error: no metric with samples in both results");
+                return 2;
+            }
+            return comparison.hasRegression() ? 1 : 0;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("error: " + e.getMessage());
+            return 2;
+        }
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+}
@@ -0,0 +1,111 @@
+package com.facebook.imgapp.utils;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+// BitmapPool: pool of mutable bitmaps to be reused by the decoder
+// (BitmapFactory.Options.inBitmap).
+// Bitmaps are grouped in size classes (by allocation byte count). A
+// bitmap can be reused to decode any image that fits in its allocation.
+// The pool keeps at most budget bytes of idle bitmaps.
+public class BitmapPool {
+    private final static String TAG = "imgapp.bitmappool";
+    // do not reuse bitmaps more than this factor larger than needed
+    private final static int MAX_WASTE_FACTOR = 2;
+
+    private final long mBudgetBytes;
+    private long mPooledBytes = 0;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mSizeClasses = new TreeMap<>();
+    // counters
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    public BitmapPool(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Get a pooled bitmap whose allocation can hold byteCount bytes.
+     *
+     * @return a bitmap to be used as inBitmap, or null (miss)
+     */
+    public synchronized Bitmap acquire(int byteCount) {
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mSizeClasses.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() / MAX_WASTE_FACTOR > byteCount) {
+            mMisses += 1;
+            return null;
+        }
+        Bitmap bitmap = remove(entry);
+        mHits += 1;
+        return bitmap;
+    }
+
+    /**
+     * Return a bitmap to the pool once its pixels are no longer needed.
+     * Bitmaps that cannot be reused, or that do not fit in the budget,
+     * are recycled.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || byteCount > mBudgetBytes) {
+            bitmap.recycle();
+            return;
+        }
+        // make room by evicting the largest bitmaps first
+        while (mPooledBytes + byteCount > mBudgetBytes) {
+            Bitmap evicted = remove(mSizeClasses.lastEntry());
+            evicted.recycle();
+            mEvictions += 1;
+        }
+        ArrayDeque<Bitmap> sizeClass = mSizeClasses.get(byteCount);
+        if (sizeClass == null) {
+            sizeClass = new ArrayDeque<>();
+            mSizeClasses.put(byteCount, sizeClass);
+        }
+        sizeClass.push(bitmap);
+        mPooledBytes += byteCount;
+    }
+
+    public synchronized void clear() {
+        while (!mSizeClasses.isEmpty()) {
+            remove(mSizeClasses.lastEntry()).recycle();
+        }
+    }
+
+    private Bitmap remove(Map.Entry<Integer, ArrayDeque<Bitmap>> entry) {
+        Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            mSizeClasses.remove(entry.getKey());
+        }
+        mPooledBytes -= entry.getKey();
+        return bitmap;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized void logStats() {
+        Log.d(TAG, "bitmap pool: hits: " + mHits + " misses: " + mMisses + " evictions: " + mEvictions + " pooled: " + mPooledBytes + "/" + mBudgetBytes + " bytes");
+    }
+}
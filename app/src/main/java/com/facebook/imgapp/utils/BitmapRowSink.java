@@ -0,0 +1,21 @@
+package com.facebook.imgapp.utils;
+
+import android.graphics.Bitmap;
+
+// BitmapRowSink: ArgbRowSink backed by a (mutable) Bitmap.
+// Note that Bitmap.setPixels() premultiplies the colors when the
+// bitmap is premultiplied. Use Bitmap.setPremultiplied(false) to
+// store the pixels verbatim.
+public class BitmapRowSink implements RawFileReader.ArgbRowSink {
+    private final Bitmap mBitmap;
+
+    public BitmapRowSink(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    @Override
+    public void setRows(int[] pixels, int y, int rows) {
+        int width = mBitmap.getWidth();
+        mBitmap.setPixels(pixels, 0, width, 0, y, width, rows);
+    }
+}
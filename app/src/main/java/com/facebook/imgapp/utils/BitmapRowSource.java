@@ -0,0 +1,37 @@
+package com.facebook.imgapp.utils;
+
+import android.graphics.Bitmap;
+
+// BitmapRowSource: ArgbRowSource backed by a Bitmap.
+// Bitmap.getPixels() returns non-premultiplied ARGB, matching
+// Bitmap.getPixel().
+public class BitmapRowSource implements RawFileWriter.ArgbRowSource {
+    private final Bitmap mBitmap;
+    private final int mHeight;
+
+    public BitmapRowSource(Bitmap bitmap) {
+        this(bitmap, bitmap.getHeight());
+    }
+
+    // use only the first height rows of the bitmap (e.g. a decoded band)
+    public BitmapRowSource(Bitmap bitmap, int height) {
+        mBitmap = bitmap;
+        mHeight = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void getRows(int[] pixels, int y, int rows) {
+        int width = mBitmap.getWidth();
+        mBitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+    }
+}
@@ -17,6 +17,61 @@ public class CliSettings {
     public static final String WIDTH = "width";
     public static final String HEIGHT = "height";
     public static final String WORKDIR = "workdir";
+    // JSON job list (see JobManifest) to run in a single process
+    public static final String MANIFEST = "manifest";
+    // job identifier (echoed in the job results)
+    public static final String JOBID = "jobId";
+    // path of the JSON result file (default: "<output>.json")
+    public static final String RESULT = "result";
+    // number of jobs run concurrently (manifest and service)
+    public static final String WORKERS = "workers";
+    // memory budget for the pixels of the running jobs, in MB
+    // (default: derived from the java heap limit and device memory)
+    public static final String MEMORYBUDGETMB = "memoryBudgetMB";
+    // run manifest jobs in a staged pipeline (read, decode, convert, write)
+    // Valid values: 0, 1
+    public static final String PIPELINE = "pipeline";
+    // number of threads of every pipeline stage (default: "1,1,1,1")
+    public static final String PIPELINETHREADS = "pipelineThreads";
+    // size of the queues between pipeline stages (default: 2)
+    public static final String PIPELINEQUEUESIZE = "pipelineQueueSize";
+    // serve decodes over a loopback TCP port (service only)
+    public static final String SERVERPORT = "serverPort";
+    // serve decodes over an abstract unix socket (service only)
+    public static final String SERVERSOCKET = "serverSocket";
+    // number of untimed passes before the timed ones (default: 0)
+    public static final String WARMUP = "warmup";
+    // number of timed passes (default: 1 when warmup is set)
+    public static final String ITERATIONS = "iterations";
+    // write the output in every pass (1), or once after the passes (0)
+    // Valid values: 0, 1
+    public static final String ITERATIONWRITE = "iterationWrite";
+    // encode sweep: compress formats (comma-separated, or "all")
+    // Valid values: ["JPEG", "PNG", "WEBP", "WEBP_LOSSLESS", "WEBP_LOSSY", "all"]
+    public static final String SWEEPFORMATS = "sweepFormats";
+    // encode sweep: qualities, as a list ("50,75,90") or a range
+    // ("0-100:10", i.e. start-end:step) (default: "0-100:10")
+    public static final String SWEEPQUALITIES = "sweepQualities";
+    // encode sweep: also write every encoded file (<output>.<format>.q<quality>)
+    // Valid values: 0, 1
+    public static final String SWEEPWRITE = "sweepWrite";
+    // throughput benchmark: thread counts, as a list ("1,2,4,8"), or the
+    // maximum ("8", i.e. 1 to 8)
+    public static final String SCALINGTHREADS = "scalingThreads";
+    // throughput benchmark: times every input is processed at every
+    // thread count (default: 1)
+    public static final String SCALINGROUNDS = "scalingRounds";
+    // latency histogram file (manifest and throughput benchmark runs)
+    public static final String HISTOGRAM = "histogram";
+    // histogram files (from previous runs) to merge into the histogram
+    // file (comma-separated)
+    public static final String HISTOGRAMMERGE = "histogramMerge";
+    // baseline result file (from a previous run) to compare the job
+    // timings against (see BaselineComparison)
+    public static final String BASELINE = "baseline";
+    // largest accepted slowdown against the baseline, in percent
+    // (default: 5)
+    public static final String REGRESSIONTHRESHOLD = "regressionThreshold";
     // BitmapFactory.Options
     // Valid values: ["ACES", "ACESCG", "ADOBE_RGB", "BT2020",
     // "BT2020_HLG", "BT2020_PQ", "BT709", "CIE_LAB", "CIE_XYZ",
@@ -28,6 +83,44 @@ public class CliSettings {
     public static final String COMPRESSFORMAT = "compressFormat";
     // Valid values: 0 to 100
     public static final String COMPRESSQUALITY = "compressQuality";
+    // encoded input reader
+    // Valid values: ["file", "mmap", "array"]
+    public static final String ENCODEDREADER = "encodedReader";
+    // budget of the decoder bitmap pool (inBitmap), in MB (0 disables it)
+    public static final String BITMAPPOOLBUDGETMB = "bitmapPoolBudgetMB";
+    // decode mode
+    // Valid values: ["full", "tiled", "parallel"]
+    public static final String DECODEMODE = "decodeMode";
+    // band height for the tiled and parallel decode modes (in rows)
+    public static final String BANDHEIGHT = "bandHeight";
+    // number of decoding threads for the parallel decode mode
+    // (default: number of cores)
+    public static final String THREADS = "threads";
+    // also run a single-threaded BitmapFactory.decodeFile() decode and
+    // report the speedup of the parallel decode mode
+    // Valid values: 0, 1
+    public static final String REPORTSPEEDUP = "reportSpeedup";
+    // raw output pixel format
+    // Valid values: ["rgba", "bgra", "rgb24", "yuv444p", "i420", "nv12", "nv21"]
+    public static final String OUTPUTPIXELFORMAT = "outputPixelFormat";
+    // YUV matrix for the raw output pixel format
+    // Valid values: ["bt601", "bt709"]
+    public static final String OUTPUTCOLORMATRIX = "outputColorMatrix";
+    // YUV range for the raw output pixel format
+    // Valid values: ["full", "limited"]
+    public static final String OUTPUTCOLORRANGE = "outputColorRange";
+    // raw output writer
+    // Valid values: ["stream", "bulk", "mmap"]
+    public static final String RAWWRITER = "rawWriter";
+    // number of threads for the raw writer pixel conversion (bulk and
+    // mmap raw writers)
+    public static final String CONVERTTHREADS = "convertThreads";
+    // encoded output writer
+    // Valid values: ["stream", "buffer"]
+    public static final String ENCODEDWRITER = "encodedWriter";
+    // fsync the output file before closing it
+    // Valid values: 0, 1
+    public static final String FSYNC = "fsync";
     // other
     private static String mWorkDir = "/sdcard/";
 
@@ -0,0 +1,24 @@
+package com.facebook.imgapp.utils;
+
+import java.io.ByteArrayOutputStream;
+
+// ExposedByteArrayOutputStream: ByteArrayOutputStream that exposes its
+// backing array, so the contents can be used without the copy done by
+// toByteArray(). Call reset() to reuse the (already grown) array.
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ExposedByteArrayOutputStream() {
+        super();
+    }
+
+    public ExposedByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /**
+     * Get the backing array. Only the first size() bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+}
@@ -0,0 +1,255 @@
+package com.facebook.imgapp.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// ImageStreamProtocol: wire format of the image streaming server.
+// A client sends requests (an encoded image plus parameters), and gets
+// the raw frame back, on the same connection. All the integers are
+// big-endian, and the strings use DataOutput.writeUTF() (a 16-bit length
+// followed by the (modified) UTF-8 bytes).
+//
+// request:
+//   int magic ("IMGS"), int version
+//   int n, then n parameters as (string key, string value), using the
+//     same keys as the CLI parameters (e.g. "outputPixelFormat")
+//   int length, then length bytes of the encoded image
+// response:
+//   int magic ("IMGS"), int status (0: ok, 1: error)
+//   error: string message
+//   ok: string pixel format, int width, int height, long frame size,
+//     then the frame as chunks (long frame position, int length, then
+//     length bytes), ending with a chunk with length 0. Chunks are sent
+//     as the rows are converted, and are not in frame order for planar
+//     pixel formats.
+public class ImageStreamProtocol {
+    public static final int MAGIC = 0x494d4753;
+    public static final int VERSION = 1;
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    // largest encoded image accepted
+    private static final int MAX_ENCODED_LENGTH = 1 << 30;
+    // largest number of parameters accepted
+    private static final int MAX_PARAMETERS = 1024;
+
+    // Request: an encoded image plus parameters
+    public static class Request {
+        public final Map<String, String> mParameters;
+        public final byte[] mEncoded;
+
+        public Request(Map<String, String> parameters, byte[] encoded) {
+            mParameters = parameters;
+            mEncoded = encoded;
+        }
+    }
+
+    // RequestHandler: serves a request
+    public interface RequestHandler {
+        /**
+         * Serve a request, writing its response (an error, or a frame).
+         * Unchecked exceptions thrown before the response is started are
+         * answered with an error. Once the response is started, failures
+         * must be thrown as IOException (which drops the connection).
+         *
+         * @return true if the request succeeded
+         */
+        boolean handle(Request request, DataOutputStream out) throws IOException;
+    }
+
+    // Response: a raw frame
+    public static class Response {
+        public final String mPixelFormat;
+        public final int mWidth;
+        public final int mHeight;
+        public final byte[] mFrame;
+
+        public Response(String pixelFormat, int width, int height, byte[] frame) {
+            mPixelFormat = pixelFormat;
+            mWidth = width;
+            mHeight = height;
+            mFrame = frame;
+        }
+    }
+
+    /**
+     * Read a request.
+     *
+     * @return the request, or null at the end of the stream (the client
+     *         closed the connection between requests)
+     * @throws IOException if the request is invalid
+     */
+    public static Request readRequest(DataInputStream in) throws IOException {
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (java.io.EOFException ex) {
+            return null;
+        }
+        checkHeader(magic, in.readInt());
+        int n = in.readInt();
+        if (n < 0 || n > MAX_PARAMETERS) {
+            throw new IOException("invalid number of parameters: " + n);
+        }
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            String key = in.readUTF();
+            parameters.put(key, in.readUTF());
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_ENCODED_LENGTH) {
+            throw new IOException("invalid encoded length: " + length);
+        }
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        return new Request(parameters, encoded);
+    }
+
+    /**
+     * Serve the requests of a connection until the client closes it.
+     *
+     * A request that fails with an unchecked exception or an
+     * OutOfMemoryError (e.g. a corrupt image, or bad dimensions) is
+     * answered with an error, and the connection keeps serving.
+     *
+     * @return number of requests served
+     * @throws IOException if the connection fails
+     */
+    public static int serve(DataInputStream in, DataOutputStream out, RequestHandler handler) throws IOException {
+        int requests = 0;
+        while (true) {
+            Request request = readRequest(in);
+            if (request == null) {
+                // the client is done
+                return requests;
+            }
+            requests += 1;
+            try {
+                handler.handle(request, out);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                writeError(out, "request failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Write a request (client side).
+     */
+    public static void writeRequest(DataOutputStream out, Map<String, String> parameters, byte[] encoded, int length) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(parameters.size());
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.writeInt(length);
+        out.write(encoded, 0, length);
+        out.flush();
+    }
+
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(STATUS_ERROR);
+        out.writeUTF(message != null ? message : "unknown error");
+        out.flush();
+    }
+
+    /**
+     * Write the response header. The frame follows, written through a
+     * ChunkSink, and ended with writeEnd().
+     */
+    public static void writeHeader(DataOutputStream out, String pixelFormat, int width, int height, long frameSize) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(STATUS_OK);
+        out.writeUTF(pixelFormat);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeLong(frameSize);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeLong(0);
+        out.writeInt(0);
+        out.flush();
+    }
+
+    // ChunkSink: sends the frame bytes as chunks
+    public static class ChunkSink implements RawFileWriter.FrameSink {
+        private final DataOutputStream mOut;
+        private byte[] mChunk = new byte[0];
+
+        public ChunkSink(DataOutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, long position) throws IOException {
+            int length = buffer.remaining();
+            if (length == 0) {
+                return;
+            }
+            mOut.writeLong(position);
+            mOut.writeInt(length);
+            if (buffer.hasArray()) {
+                mOut.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.limit());
+            } else {
+                // direct buffers need a copy
+                if (mChunk.length < length) {
+                    mChunk = new byte[length];
+                }
+                buffer.get(mChunk, 0, length);
+                mOut.write(mChunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Read a response (client side).
+     *
+     * @throws IOException if the server returned an error
+     */
+    public static Response readResponse(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        int status = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("invalid magic: " + Integer.toHexString(magic));
+        }
+        if (status != STATUS_OK) {
+            throw new IOException("server error: " + in.readUTF());
+        }
+        String pixelFormat = in.readUTF();
+        int width = in.readInt();
+        int height = in.readInt();
+        long frameSize = in.readLong();
+        if (frameSize < 0 || frameSize > Integer.MAX_VALUE) {
+            throw new IOException("invalid frame size: " + frameSize);
+        }
+        byte[] frame = new byte[(int) frameSize];
+        while (true) {
+            long position = in.readLong();
+            int length = in.readInt();
+            if (length == 0) {
+                break;
+            }
+            if (position < 0 || length < 0 || position + length > frameSize) {
+                throw new IOException("invalid chunk: " + position + "+" + length);
+            }
+            in.readFully(frame, (int) position, length);
+        }
+        return new Response(pixelFormat, width, height, frame);
+    }
+
+    private static void checkHeader(int magic, int version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("invalid magic: " + Integer.toHexString(magic));
+        }
+        if (version != VERSION) {
+            throw new IOException("unsupported version: " + version);
+        }
+    }
+}
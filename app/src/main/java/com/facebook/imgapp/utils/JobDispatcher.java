@@ -0,0 +1,102 @@
+package com.facebook.imgapp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// JobDispatcher: runs the jobs of a long-lived process (see
+// ImageCodecService), accounts them (see ProcessJobCounter), and answers
+// every job with a reply.
+// Only the reply of the first job of the process carries the startup
+// fields ("startupMs", "coldStart"): later jobs run in the
+// already-running process, and skip the process startup.
+// The job parameters are opaque to the dispatcher (a Bundle in the
+// service).
+public class JobDispatcher<P> {
+    // reply keys
+    public static final String JOB_ID = CliSettings.JOBID;
+    public static final String STATUS = "status";
+    // number of jobs run by this process (including this one)
+    public static final String JOB_NUMBER = "jobNumber";
+    // process start time (in ms, same clock as the job start times)
+    public static final String PROCESS_START_MS = "processStartMs";
+    // time since the process started (in ms)
+    public static final String PROCESS_AGE_MS = "processAgeMs";
+    // process startup paid by the job (first job only)
+    public static final String STARTUP_MS = "startupMs";
+    // the job started the process (first job only)
+    public static final String COLD_START = "coldStart";
+
+    // Clock: job start times (in ms)
+    public interface Clock {
+        long getNowMs();
+    }
+
+    // Runner: runs a job, and reports its result once done (from any
+    // thread)
+    public interface Runner<P> {
+        void run(P parameters, String jobId, ProcessJobCounter.Job job, Done done);
+    }
+
+    // Done: result of a job
+    public interface Done {
+        void onJobDone(boolean result);
+    }
+
+    // Replies: receives the reply of every job
+    public interface Replies {
+        void reply(Map<String, Object> reply);
+    }
+
+    private final ProcessJobCounter mJobCounter;
+    private final Clock mClock;
+    private final Runner<P> mRunner;
+    private final Replies mReplies;
+
+
+    /**
+     * @param processStartMs process start time (in the clock time)
+     */
+    public JobDispatcher(long processStartMs, Clock clock, Runner<P> runner, Replies replies) {
+        mJobCounter = new ProcessJobCounter(processStartMs);
+        mClock = clock;
+        mRunner = runner;
+        mReplies = replies;
+    }
+
+    /**
+     * Run a job.
+     *
+     * @param jobId job id (null to use the job number)
+     */
+    public void dispatch(P parameters, String jobId) {
+        final ProcessJobCounter.Job job = mJobCounter.next(mClock.getNowMs());
+        final String id = (jobId != null) ? jobId : String.valueOf(job.mJobNumber);
+        mRunner.run(parameters, id, job, new Done() {
+            @Override
+            public void onJobDone(boolean result) {
+                mReplies.reply(getReply(id, result, job));
+            }
+        });
+    }
+
+    public int getJobCount() {
+        return mJobCounter.getJobCount();
+    }
+
+    /**
+     * Get the reply of a job (in key order, for the logs).
+     */
+    static Map<String, Object> getReply(String jobId, boolean result, ProcessJobCounter.Job job) {
+        Map<String, Object> reply = new LinkedHashMap<>();
+        reply.put(JOB_ID, jobId);
+        reply.put(STATUS, result ? "ok" : "error");
+        reply.put(JOB_NUMBER, job.mJobNumber);
+        reply.put(PROCESS_START_MS, job.mProcessStartMs);
+        reply.put(PROCESS_AGE_MS, job.mProcessAgeMs);
+        if (job.isColdStart()) {
+            reply.put(STARTUP_MS, job.mStartupMs);
+            reply.put(COLD_START, true);
+        }
+        return reply;
+    }
+}
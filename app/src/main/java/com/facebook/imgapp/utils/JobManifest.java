@@ -0,0 +1,43 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+
+// JobManifest: list of encode/decode jobs to run in a single process.
+// The manifest is a JSON array of jobs. Each job is an object whose keys
+// are the same as the CLI parameters (see CliSettings), e.g.:
+// [
+//   {"decode": "a", "input": "/sdcard/a.heic", "output": "/sdcard/a.rgba"},
+//   {"encode": "a", "input": "/sdcard/b.rgba", "output": "/sdcard/b.jpg",
+//    "width": 1024, "height": 768, "compressFormat": "JPEG", "compressQuality": 90}
+// ]
+// Values can be JSON strings, numbers, or booleans.
+public class JobManifest {
+
+    /**
+     * Read a job manifest.
+     *
+     * @return list of jobs (key -> value)
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static List<Map<String, String>> read(String path) throws IOException {
+        Type type = new TypeToken<List<Map<String, String>>>() {}.getType();
+        try (Reader reader = new FileReader(path)) {
+            List<Map<String, String>> jobs = new Gson().fromJson(reader, type);
+            if (jobs == null) {
+                throw new IOException("empty manifest: " + path);
+            }
+            return jobs;
+        } catch (JsonParseException e) {
+            throw new IOException("invalid manifest: " + path + ": " + e.getMessage());
+        }
+    }
+}
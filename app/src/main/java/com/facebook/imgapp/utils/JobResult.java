@@ -0,0 +1,214 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// JobResult: outcome of a job, written as a small JSON file (by default
+// next to the output, as "<output>.json") once the job is done, e.g.:
+// {"status": "ok", "input": "/sdcard/a.heic", "output": "/sdcard/a.rgba",
+//  "width": 4032, "height": 3024,
+//  "timings": {"decodeMs": 812, "writeMs": 95, "totalMs": 913},
+//  "stages": {"parse": {"wallNs": 81201, "cpuNs": 80113, "count": 1}, ...},
+//  "memory": {"javaHeapStartBytes": 3145728, "javaHeapPeakBytes": 4194304,
+//             "bitmapBytes": 48771072, ...}}
+// "stages" has the wall and thread CPU time of every stage (see
+// StageTimings). "memory" has sizes in bytes: peaks keep the largest
+// value reported during the job.
+// Encode sweeps also get a "sweep" array, with one object per (format,
+// quality) point, and throughput benchmarks a "scaling" array, with one
+// object per thread count (see ThroughputCurve).
+// Jobs with warmup/iterations also get an "iterations" object (see
+// TimingStats). Jobs compared against a baseline get a "comparison"
+// object (see BaselineComparison), and "status": "regression" if any of
+// the timings regressed.
+// Failed jobs get "status": "error", and an "error" message. The file is
+// renamed into place atomically, so the host can wait for it, and treat
+// a dead process without a result file as a crash.
+public class JobResult {
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_ERROR = "error";
+    public static final String STATUS_REGRESSION = "regression";
+
+    private String mStatus = STATUS_ERROR;
+    private String mInput = null;
+    private String mOutput = null;
+    private int mWidth = -1;
+    private int mHeight = -1;
+    private final Map<String, Long> mTimings = new LinkedHashMap<>();
+    private final Map<String, Long> mMemory = new LinkedHashMap<>();
+    private String mError = null;
+    private int mWarmup = 0;
+    private TimingStats mIterations = null;
+    private JsonArray mSweep = null;
+    private ThroughputCurve mScaling = null;
+    private BaselineComparison mComparison = null;
+    private final StageTimings mStageTimings;
+
+
+    /**
+     * @param clock clock used for the stage timings
+     */
+    public JobResult(StageTimings.Clock clock) {
+        mStageTimings = new StageTimings(clock);
+    }
+
+    public StageTimings getStageTimings() {
+        return mStageTimings;
+    }
+
+
+    public synchronized void setStatus(boolean ok) {
+        mStatus = ok ? STATUS_OK : STATUS_ERROR;
+    }
+
+    public synchronized void setPaths(String input, String output) {
+        mInput = input;
+        mOutput = output;
+    }
+
+    public synchronized void setDimensions(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Add a timing (in ms). Timings keep their insertion order.
+     */
+    public synchronized void putTiming(String name, long ms) {
+        mTimings.put(name, ms);
+    }
+
+    /**
+     * Add a memory size (in bytes).
+     */
+    public synchronized void putMemory(String name, long bytes) {
+        mMemory.put(name, bytes);
+    }
+
+    /**
+     * Add a memory size (in bytes), keeping the largest value reported.
+     */
+    public synchronized void putMemoryPeak(String name, long bytes) {
+        Long previous = mMemory.get(name);
+        if (previous == null || previous < bytes) {
+            mMemory.put(name, bytes);
+        }
+    }
+
+    /**
+     * Set the timing statistics of the timed passes.
+     */
+    public synchronized void setIterations(int warmup, TimingStats iterations) {
+        mWarmup = warmup;
+        mIterations = iterations;
+    }
+
+    /**
+     * Add an encode sweep point.
+     *
+     * @param encodeStats timing statistics of the timed encodes
+     */
+    public synchronized void addSweepPoint(String format, int quality, long bytes, double bitsPerPixel, TimingStats encodeStats) {
+        if (mSweep == null) {
+            mSweep = new JsonArray();
+        }
+        JsonObject point = new JsonObject();
+        point.addProperty("format", format);
+        point.addProperty("quality", quality);
+        point.addProperty("bytes", bytes);
+        point.addProperty("bitsPerPixel", bitsPerPixel);
+        point.addProperty("encodeMs", encodeStats.getMedianNs() / 1e6);
+        point.add("encode", encodeStats.toJson());
+        mSweep.add(point);
+    }
+
+    /**
+     * Set the throughput benchmark results.
+     */
+    public synchronized void setScaling(ThroughputCurve scaling) {
+        mScaling = scaling;
+    }
+
+    /**
+     * Set the baseline comparison. A regression overrides the status.
+     */
+    public synchronized void setComparison(BaselineComparison comparison) {
+        mComparison = comparison;
+        if (comparison.hasRegression()) {
+            mStatus = STATUS_REGRESSION;
+        }
+    }
+
+    /**
+     * Set the error message. Only the first error is kept, as later
+     * errors are usually consequences of it.
+     */
+    public synchronized void setError(String error) {
+        if (mError == null) {
+            mError = error;
+        }
+    }
+
+    public synchronized String getError() {
+        return mError;
+    }
+
+    public synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("status", mStatus);
+        json.addProperty("input", mInput);
+        json.addProperty("output", mOutput);
+        if (mWidth >= 0 && mHeight >= 0) {
+            json.addProperty("width", mWidth);
+            json.addProperty("height", mHeight);
+        }
+        JsonObject timings = new JsonObject();
+        for (Map.Entry<String, Long> entry : mTimings.entrySet()) {
+            timings.addProperty(entry.getKey(), entry.getValue());
+        }
+        json.add("timings", timings);
+        json.add("stages", mStageTimings.toJson());
+        if (!mMemory.isEmpty()) {
+            JsonObject memory = new JsonObject();
+            for (Map.Entry<String, Long> entry : mMemory.entrySet()) {
+                memory.addProperty(entry.getKey(), entry.getValue());
+            }
+            json.add("memory", memory);
+        }
+        if (mIterations != null) {
+            JsonObject iterations = mIterations.toJson();
+            iterations.addProperty("warmup", mWarmup);
+            json.add("iterations", iterations);
+        }
+        if (mSweep != null) {
+            json.add("sweep", mSweep);
+        }
+        if (mScaling != null) {
+            json.add("scaling", mScaling.toJson());
+        }
+        if (mComparison != null) {
+            json.add("comparison", mComparison.toJson());
+        }
+        if (mError != null) {
+            json.addProperty("error", mError);
+        }
+        return json;
+    }
+
+    /**
+     * Write the result file atomically.
+     */
+    public void write(String path) throws IOException {
+        try (Writer writer = new FileWriter(OutputFiles.getTempPath(path))) {
+            new Gson().toJson(toJson(), writer);
+        }
+        OutputFiles.commit(path);
+    }
+}
@@ -0,0 +1,187 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LatencyHistogram: fixed-memory latency histogram with log-linear
+// buckets (as HdrHistogram).
+// Values (in ns) under 256 get their own bucket. Above that, every power
+// of 2 range is split into 128 linear buckets, so any value is reported
+// with a relative error under 1% (2^-7), from 1 ns to 2^44 ns (~4.9 h:
+// larger values are clamped). Recording is lock-free and does not
+// allocate, so it can be done from any thread while jobs run.
+// Histograms can be merged (e.g. across runs, using the JSON form, which
+// keeps the non-empty buckets).
+public class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 8;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private final static int MAX_VALUE_BITS = 44;
+    private final static long MAX_VALUE_NS = (1L << MAX_VALUE_BITS) - 1;
+    private final static int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+    // percentiles in the reports
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong(0);
+    private final AtomicLong mMaxNs = new AtomicLong(0);
+
+
+    /**
+     * Record a value (in ns).
+     */
+    public void record(long valueNs) {
+        long value = Math.min(Math.max(valueNs, 0), MAX_VALUE_NS);
+        mCounts.incrementAndGet(getIndex(value));
+        mCount.incrementAndGet();
+        updateMax(value);
+    }
+
+    /**
+     * Add the values of another histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.mCounts.get(i);
+            if (count != 0) {
+                mCounts.addAndGet(i, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        updateMax(other.mMaxNs.get());
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNs() {
+        return mMaxNs.get();
+    }
+
+    /**
+     * Get the value at a percentile: the highest value of the bucket of
+     * the sample at the percentile rank (0 if empty).
+     *
+     * @param percentile percentile (0 to 100)
+     */
+    public long getValueAtPercentileNs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getHighestValue(i), mMaxNs.get());
+            }
+        }
+        return mMaxNs.get();
+    }
+
+    /**
+     * Get the percentiles (p50, p90, p99, p99.9, and max, in ms).
+     */
+    public JsonObject toSummaryJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", getCount());
+        for (double percentile : PERCENTILES) {
+            json.addProperty(getPercentileName(percentile) + "Ms", getValueAtPercentileNs(percentile) / 1e6);
+        }
+        json.addProperty("maxMs", getMaxNs() / 1e6);
+        return json;
+    }
+
+    /**
+     * Get the percentiles, and the non-empty buckets (so the histogram
+     * can be merged with addJson()).
+     */
+    public JsonObject toJson() {
+        JsonObject json = toSummaryJson();
+        json.addProperty("subBucketBits", SUB_BUCKET_BITS);
+        json.addProperty("maxNs", getMaxNs());
+        JsonArray buckets = new JsonArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = mCounts.get(i);
+            if (count != 0) {
+                JsonArray bucket = new JsonArray();
+                bucket.add(i);
+                bucket.add(count);
+                buckets.add(bucket);
+            }
+        }
+        json.add("buckets", buckets);
+        return json;
+    }
+
+    /**
+     * Add the values of a histogram in JSON form (see toJson()).
+     *
+     * @throws IllegalArgumentException if the JSON is not a histogram
+     *         with the same bucket layout
+     */
+    public void addJson(JsonObject json) {
+        if (!json.has("subBucketBits") || json.get("subBucketBits").getAsInt() != SUB_BUCKET_BITS ||
+                !json.has("buckets") || !json.has("maxNs")) {
+            throw new IllegalArgumentException("not a histogram (or different bucket layout)");
+        }
+        for (JsonElement element : json.getAsJsonArray("buckets")) {
+            JsonArray bucket = element.getAsJsonArray();
+            int index = bucket.get(0).getAsInt();
+            long count = bucket.get(1).getAsLong();
+            if (index < 0 || index >= BUCKET_COUNT || count < 0) {
+                throw new IllegalArgumentException("invalid histogram bucket: " + bucket);
+            }
+            mCounts.addAndGet(index, count);
+            mCount.addAndGet(count);
+        }
+        updateMax(json.get("maxNs").getAsLong());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder("count: " + getCount());
+        for (double percentile : PERCENTILES) {
+            string.append(String.format(Locale.US, " %s: %.3f ms", getPercentileName(percentile), getValueAtPercentileNs(percentile) / 1e6));
+        }
+        string.append(String.format(Locale.US, " max: %.3f ms", getMaxNs() / 1e6));
+        return string.toString();
+    }
+
+    private void updateMax(long valueNs) {
+        long max = mMaxNs.get();
+        while (valueNs > max && !mMaxNs.compareAndSet(max, valueNs)) {
+            max = mMaxNs.get();
+        }
+    }
+
+    private static String getPercentileName(double percentile) {
+        // e.g. "p50", "p99", "p999"
+        return "p" + String.valueOf(percentile).replace(".0", "").replace(".", "");
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // value >> shift is in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >> shift) - SUB_BUCKET_HALF);
+    }
+
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,168 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// LatencyHistograms: set of named latency histograms, one per stage and
+// format (e.g. "decode/heic", "encode/JPEG", "total/heic").
+// The histogram file is a JSON object with a histogram (see
+// LatencyHistogram.toJson()) per name, e.g.:
+// {"decode/heic": {"count": 200, "p50Ms": 301.9, "p90Ms": 322.4,
+//                  "p99Ms": 402.1, "p999Ms": 410.2, "maxMs": 410.2,
+//                  "subBucketBits": 8, "maxNs": 410211803,
+//                  "buckets": [[3713, 1], ...]}, ...}
+// Files from several runs can be merged (see addFile()).
+// Recording goes through the histograms resolved by get() or getFormat(),
+// so it does not build names or take the lock of the set.
+public class LatencyHistograms {
+    private final Map<String, LatencyHistogram> mHistograms = new TreeMap<>();
+    private final Map<String, FormatHistograms> mFormats = new ConcurrentHashMap<>();
+
+    // FormatHistograms: the histograms of a format, by stage (resolved on
+    // first use, then looked up without allocating)
+    public static class FormatHistograms {
+        private final LatencyHistograms mHistograms;
+        private final String mFormat;
+        private final Map<String, LatencyHistogram> mStages = new ConcurrentHashMap<>();
+
+        private FormatHistograms(LatencyHistograms histograms, String format) {
+            mHistograms = histograms;
+            mFormat = format;
+        }
+
+        /**
+         * Get the "<stage>/<format>" histogram.
+         */
+        public LatencyHistogram get(String stage) {
+            LatencyHistogram histogram = mStages.get(stage);
+            if (histogram == null) {
+                // the set returns the same histogram to racing threads
+                histogram = mHistograms.get(stage + "/" + mFormat);
+                mStages.put(stage, histogram);
+            }
+            return histogram;
+        }
+
+        /**
+         * Record the wall time of every stage of a job.
+         */
+        public void recordStages(StageTimings stageTimings) {
+            for (String stage : stageTimings.getStageNames()) {
+                get(stage).record(stageTimings.getWallNs(stage));
+            }
+        }
+    }
+
+
+    /**
+     * Get a histogram (created on first use).
+     */
+    public synchronized LatencyHistogram get(String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the histograms of a format (created on first use).
+     */
+    public FormatHistograms getFormat(String format) {
+        FormatHistograms histograms = mFormats.get(format);
+        if (histograms == null) {
+            synchronized (this) {
+                histograms = mFormats.get(format);
+                if (histograms == null) {
+                    histograms = new FormatHistograms(this, format);
+                    mFormats.put(format, histograms);
+                }
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Add all the histograms of another set (names get the suffix).
+     */
+    public void add(LatencyHistograms other, String suffix) {
+        for (Map.Entry<String, LatencyHistogram> entry : other.getHistograms().entrySet()) {
+            get(entry.getKey() + suffix).add(entry.getValue());
+        }
+    }
+
+    /**
+     * Add the histograms of a histogram file (e.g. from a previous run).
+     *
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public void addFile(String path) throws IOException {
+        try (Reader reader = new FileReader(path)) {
+            JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+                get(entry.getKey()).addJson(entry.getValue().getAsJsonObject());
+            }
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("invalid histogram file: " + path + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return mHistograms.isEmpty();
+    }
+
+    /**
+     * Get the percentiles of every histogram (no buckets).
+     */
+    public JsonObject toSummaryJson() {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            json.add(entry.getKey(), entry.getValue().toSummaryJson());
+        }
+        return json;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            json.add(entry.getKey(), entry.getValue().toJson());
+        }
+        return json;
+    }
+
+    /**
+     * Write the histogram file atomically.
+     */
+    public void write(String path) throws IOException {
+        try (Writer writer = new FileWriter(OutputFiles.getTempPath(path))) {
+            new Gson().toJson(toJson(), writer);
+        }
+        OutputFiles.commit(path);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            string.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        return string.toString();
+    }
+
+    private synchronized Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(mHistograms);
+    }
+}
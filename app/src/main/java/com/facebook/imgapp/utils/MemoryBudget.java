@@ -0,0 +1,77 @@
+package com.facebook.imgapp.utils;
+
+import java.util.ArrayDeque;
+
+// MemoryBudget: global budget of bytes that running jobs reserve before
+// allocating their pixels.
+// Reservations are granted in FIFO order: a reservation that does not
+// fit blocks until enough bytes are released (and blocks the ones that
+// came after it, so large jobs are not starved). A reservation larger
+// than the whole budget is granted when nothing else is reserved.
+public class MemoryBudget {
+    private final long mCapacity;
+    private long mReserved = 0;
+    private final ArrayDeque<Object> mWaiters = new ArrayDeque<>();
+    // stats
+    private long mPeakReserved = 0;
+    private long mBlockedReservations = 0;
+
+    public MemoryBudget(long capacity) {
+        mCapacity = capacity;
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Reserve bytes from the budget, blocking until they are available.
+     */
+    public synchronized void reserve(long bytes) throws InterruptedException {
+        Object ticket = new Object();
+        mWaiters.addLast(ticket);
+        boolean blocked = false;
+        try {
+            while (mWaiters.peekFirst() != ticket || !fits(bytes)) {
+                blocked = true;
+                wait();
+            }
+        } catch (InterruptedException e) {
+            mWaiters.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        mWaiters.removeFirst();
+        mReserved += bytes;
+        mPeakReserved = Math.max(mPeakReserved, mReserved);
+        if (blocked) {
+            mBlockedReservations += 1;
+        }
+        // the next waiter may fit too
+        notifyAll();
+    }
+
+    /**
+     * Return bytes previously reserved.
+     */
+    public synchronized void release(long bytes) {
+        mReserved -= bytes;
+        notifyAll();
+    }
+
+    private boolean fits(long bytes) {
+        return (mReserved + bytes <= mCapacity) || (mReserved == 0);
+    }
+
+    public synchronized long getReserved() {
+        return mReserved;
+    }
+
+    public synchronized long getPeakReserved() {
+        return mPeakReserved;
+    }
+
+    public synchronized long getBlockedReservations() {
+        return mBlockedReservations;
+    }
+}
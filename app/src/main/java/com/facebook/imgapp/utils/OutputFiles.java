@@ -0,0 +1,36 @@
+package com.facebook.imgapp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+// OutputFiles: atomic output files.
+// Outputs are written to a temporary file next to their final path, and
+// renamed into place once complete, so a reader never sees a partial
+// output under the final name.
+public class OutputFiles {
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Get the path where the output must be written.
+     */
+    public static String getTempPath(String path) {
+        return path + TEMP_SUFFIX;
+    }
+
+    /**
+     * Rename the (complete) temporary output into its final path.
+     */
+    public static void commit(String path) throws IOException {
+        Files.move(Paths.get(getTempPath(path)), Paths.get(path), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the temporary output (if any).
+     */
+    public static void discard(String path) {
+        new File(getTempPath(path)).delete();
+    }
+}
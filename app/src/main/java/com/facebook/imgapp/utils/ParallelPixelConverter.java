@@ -0,0 +1,98 @@
+package com.facebook.imgapp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// ParallelPixelConverter: fork/join version of the raw pixel format
+// conversion kernels.
+// The row range is split recursively into stripes. Each stripe is pulled
+// from the source and converted into its own (disjoint) range of the
+// shared output buffers.
+public class ParallelPixelConverter {
+    private final ForkJoinPool mPool;
+    // per-thread stripe buffer
+    private final ThreadLocal<int[]> mPixels = new ThreadLocal<>();
+
+    public ParallelPixelConverter(int parallelism) {
+        mPool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return mPool.getParallelism();
+    }
+
+    /**
+     * Convert rows [y, y + rows) of the source into the pixel format.
+     *
+     * @param format output pixel format
+     * @param source pixel source (getRows() is called concurrently)
+     * @param y first row to convert (aligned to the format row alignment)
+     * @param rows number of rows to convert
+     * @param planes output buffers (one per plane, absolute positions)
+     * @param planeOffsets position in each plane buffer of the (plane)
+     *        row that corresponds to row y
+     */
+    public void convert(RawPixelFormat format, RawFileWriter.ArgbRowSource source, int y, int rows, ByteBuffer[] planes, int[] planeOffsets) {
+        int stripeHeight = RawFileWriter.getStripeHeight(source.getWidth(), format);
+        mPool.invoke(new RowStripeTask(format, source, y, rows, stripeHeight, planes, planeOffsets, y));
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    private int[] getPixels(int numberOfPixels) {
+        int[] pixels = mPixels.get();
+        if (pixels == null || pixels.length < numberOfPixels) {
+            pixels = new int[numberOfPixels];
+            mPixels.set(pixels);
+        }
+        return pixels;
+    }
+
+    private class RowStripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RawPixelFormat mFormat;
+        private final RawFileWriter.ArgbRowSource mSource;
+        private final int mY;
+        private final int mRows;
+        private final int mStripeHeight;
+        private final ByteBuffer[] mPlanes;
+        private final int[] mPlaneOffsets;
+        // row that corresponds to mPlaneOffsets
+        private final int mBaseY;
+
+        RowStripeTask(RawPixelFormat format, RawFileWriter.ArgbRowSource source, int y, int rows, int stripeHeight, ByteBuffer[] planes, int[] planeOffsets, int baseY) {
+            mFormat = format;
+            mSource = source;
+            mY = y;
+            mRows = rows;
+            mStripeHeight = stripeHeight;
+            mPlanes = planes;
+            mPlaneOffsets = planeOffsets;
+            mBaseY = baseY;
+        }
+
+        @Override
+        protected void compute() {
+            if (mRows > mStripeHeight) {
+                // split in two halves (aligned to full stripes)
+                int half = ((mRows / mStripeHeight + 1) / 2) * mStripeHeight;
+                invokeAll(new RowStripeTask(mFormat, mSource, mY, half, mStripeHeight, mPlanes, mPlaneOffsets, mBaseY),
+                        new RowStripeTask(mFormat, mSource, mY + half, mRows - half, mStripeHeight, mPlanes, mPlaneOffsets, mBaseY));
+                return;
+            }
+            int width = mSource.getWidth();
+            int[] pixels = getPixels(width * mRows);
+            mSource.getRows(pixels, mY, mRows);
+            // every task writes its own (disjoint) rows of each plane
+            int[] offsets = new int[mPlaneOffsets.length];
+            for (int plane = 0; plane < offsets.length; plane++) {
+                offsets[plane] = mPlaneOffsets[plane]
+                        + ((mY - mBaseY) >> mFormat.getPlaneVerticalShift(plane)) * mFormat.getPlaneRowBytes(plane, width);
+            }
+            mFormat.convert(pixels, width, mRows, mPlanes, offsets);
+        }
+    }
+}
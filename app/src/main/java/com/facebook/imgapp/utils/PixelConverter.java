@@ -0,0 +1,54 @@
+package com.facebook.imgapp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// PixelConverter: pixel format conversion kernels.
+public class PixelConverter {
+
+    /**
+     * Convert packed ARGB pixels (as returned by Bitmap.getPixels())
+     * into packed RGBA bytes.
+     *
+     * The bytes are written at the current position of dst, which is
+     * advanced by 4 * numberOfPixels.
+     *
+     * @param src packed ARGB pixels
+     * @param srcOffset index of the first pixel to convert
+     * @param dst output buffer (must use big-endian byte order)
+     * @param numberOfPixels number of pixels to convert
+     */
+    public static void argbToRgba(int[] src, int srcOffset, ByteBuffer dst, int numberOfPixels) {
+        if (dst.order() != ByteOrder.BIG_ENDIAN) {
+            throw new IllegalArgumentException("argbToRgba(): dst must be big-endian");
+        }
+        int end = srcOffset + numberOfPixels;
+        for (int i = srcOffset; i < end; i++) {
+            // ARGB -> RGBA is a left rotation by one byte
+            dst.putInt(Integer.rotateLeft(src[i], 8));
+        }
+    }
+
+    /**
+     * Convert packed RGBA bytes into packed ARGB pixels (as accepted by
+     * Bitmap.setPixels()).
+     *
+     * The bytes are read from the current position of src, which is
+     * advanced by 4 * numberOfPixels.
+     *
+     * @param src input buffer (must use big-endian byte order)
+     * @param dst packed ARGB pixels
+     * @param dstOffset index of the first pixel to write
+     * @param numberOfPixels number of pixels to convert
+     */
+    public static void rgbaToArgb(ByteBuffer src, int[] dst, int dstOffset, int numberOfPixels) {
+        if (src.order() != ByteOrder.BIG_ENDIAN) {
+            throw new IllegalArgumentException("rgbaToArgb(): src must be big-endian");
+        }
+        int end = dstOffset + numberOfPixels;
+        for (int i = dstOffset; i < end; i++) {
+            // RGBA -> ARGB is a right rotation by one byte
+            dst[i] = Integer.rotateRight(src.getInt(), 8);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.facebook.imgapp.utils;
+
+// ProcessJobCounter: numbers the jobs run by a long-lived process, and
+// accounts the process startup: only the first job of the process pays
+// it (the time from the process start to the job start). Later jobs
+// find the process (and the codec libraries) already warm, and report
+// no startup cost.
+public class ProcessJobCounter {
+    private final long mProcessStartMs;
+    private int mJobNumber = 0;
+
+    // Job: accounting of a single job
+    public static class Job {
+        // number of jobs run by the process (including this one)
+        public final int mJobNumber;
+        // process start time
+        public final long mProcessStartMs;
+        // time from the process start to the job start
+        public final long mProcessAgeMs;
+        // process startup paid by the job (0 unless it is the first one)
+        public final long mStartupMs;
+
+        Job(int jobNumber, long processStartMs, long processAgeMs, long startupMs) {
+            mJobNumber = jobNumber;
+            mProcessStartMs = processStartMs;
+            mProcessAgeMs = processAgeMs;
+            mStartupMs = startupMs;
+        }
+
+        public boolean isColdStart() {
+            return mJobNumber == 1;
+        }
+    }
+
+
+    /**
+     * @param processStartMs process start time (same clock as the job
+     *        start times)
+     */
+    public ProcessJobCounter(long processStartMs) {
+        mProcessStartMs = processStartMs;
+    }
+
+    /**
+     * Account a new job.
+     *
+     * @param nowMs job start time
+     */
+    public synchronized Job next(long nowMs) {
+        mJobNumber += 1;
+        long processAgeMs = nowMs - mProcessStartMs;
+        return new Job(mJobNumber, mProcessStartMs, processAgeMs, (mJobNumber == 1) ? processAgeMs : 0);
+    }
+
+    public synchronized int getJobCount() {
+        return mJobNumber;
+    }
+}
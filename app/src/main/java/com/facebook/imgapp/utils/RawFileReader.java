@@ -0,0 +1,85 @@
+package com.facebook.imgapp.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// RawFileReader: reads packed RGBA raw files into ARGB pixel rows.
+// The file is read in stripes of rows into a small reusable direct
+// buffer, so the full file is never held in memory.
+public class RawFileReader {
+
+    // ArgbRowSink: accepts packed ARGB pixel rows (e.g. a Bitmap)
+    public interface ArgbRowSink {
+        // copy rows [y, y + rows) from pixels (stride is the sink width)
+        void setRows(int[] pixels, int y, int rows);
+    }
+
+    private int[] mPixels = null;
+    private ByteBuffer mBuffer = null;
+    private StageTimings mStageTimings = null;
+
+    /**
+     * Set where to record the "read" and "convert" times (null to
+     * disable).
+     */
+    public void setStageTimings(StageTimings stageTimings) {
+        mStageTimings = stageTimings;
+    }
+
+    /**
+     * Read a packed RGBA file into the sink.
+     *
+     * @param channel input channel (read from its current position)
+     * @param width image width
+     * @param height image height
+     * @param sink pixel sink
+     * @throws IOException if the file ends before all the pixels are read
+     */
+    public void read(FileChannel channel, int width, int height, ArgbRowSink sink) throws IOException {
+        int stripeHeight = RawFileWriter.getStripeHeight(width);
+        allocateBuffers(width * stripeHeight);
+
+        for (int y = 0; y < height; y += stripeHeight) {
+            int rows = Math.min(stripeHeight, height - y);
+            StageTimings.Split split = (mStageTimings != null) ? mStageTimings.start() : null;
+            // 1. fill the stripe (read() may return short reads)
+            mBuffer.clear();
+            mBuffer.limit(4 * width * rows);
+            while (mBuffer.hasRemaining()) {
+                if (channel.read(mBuffer) < 0) {
+                    throw new IOException("short raw file: missing data at row " + y);
+                }
+            }
+            if (split != null) {
+                mStageTimings.lap("read", split);
+            }
+            // 2. convert it into packed ARGB
+            mBuffer.flip();
+            PixelConverter.rgbaToArgb(mBuffer, mPixels, 0, width * rows);
+            // 3. push the stripe
+            sink.setRows(mPixels, y, rows);
+            if (split != null) {
+                mStageTimings.stop("convert", split);
+            }
+        }
+    }
+
+    /**
+     * Get the size of the stripe buffers (in bytes).
+     */
+    public long getBufferBytes() {
+        if (mPixels == null) {
+            return 0;
+        }
+        return 4L * mPixels.length + mBuffer.capacity();
+    }
+
+    private void allocateBuffers(int numberOfPixels) {
+        // reuse the buffers from previous calls when large enough
+        if (mPixels == null || mPixels.length < numberOfPixels) {
+            mPixels = new int[numberOfPixels];
+            mBuffer = ByteBuffer.allocateDirect(4 * numberOfPixels);
+        }
+    }
+}
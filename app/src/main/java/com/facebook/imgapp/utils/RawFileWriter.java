@@ -0,0 +1,306 @@
+package com.facebook.imgapp.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// RawFileWriter: writes raw files (packed RGBA by default) from ARGB
+// pixel rows.
+// The pixels are pulled in stripes of rows into a reusable buffer,
+// converted in one pass, and written using a FileChannel.
+public class RawFileWriter {
+    // approximate size of a stripe (in bytes)
+    private final static int STRIPE_SIZE = 1 << 20;
+    // maximum size of a single file mapping (in bytes)
+    private final static int MAPPING_SIZE = 1 << 28;
+
+    // ArgbRowSource: provides packed ARGB pixel rows (e.g. a Bitmap)
+    public interface ArgbRowSource {
+        int getWidth();
+        int getHeight();
+        // copy rows [y, y + rows) into pixels (stride is the source width)
+        void getRows(int[] pixels, int y, int rows);
+    }
+
+    // FrameSink: receives the converted bytes of a frame
+    public interface FrameSink {
+        // write the buffer remaining bytes at the given frame position
+        void write(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    private RawPixelFormat mFormat = RawPixelFormat.RGBA;
+    private int[] mPixels = null;
+    private ByteBuffer[] mPlanes = null;
+    private ParallelPixelConverter mParallelConverter = null;
+    private StageTimings mStageTimings = null;
+
+    public static int getStripeHeight(int width) {
+        return Math.max(1, STRIPE_SIZE / (4 * Math.max(1, width)));
+    }
+
+    // stripe height, aligned to the pixel format subsampling
+    public static int getStripeHeight(int width, RawPixelFormat format) {
+        int alignment = format.getRowAlignment();
+        return ((getStripeHeight(width) + alignment - 1) / alignment) * alignment;
+    }
+
+    /**
+     * Set the output pixel format (default: packed RGBA).
+     */
+    public void setPixelFormat(RawPixelFormat format) {
+        if (format != mFormat) {
+            mFormat = format;
+            mPlanes = null;
+        }
+    }
+
+    public RawPixelFormat getPixelFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Use a fork/join converter for the pixel conversion (null to
+     * convert in the calling thread).
+     */
+    public void setParallelConverter(ParallelPixelConverter parallelConverter) {
+        mParallelConverter = parallelConverter;
+    }
+
+    /**
+     * Set where to record the "convert" and "write" times (null to
+     * disable). Conversion includes pulling the pixels from the source.
+     * Mapped writes are recorded as "convert", as the rows are converted
+     * straight into the mapping.
+     */
+    public void setStageTimings(StageTimings stageTimings) {
+        mStageTimings = stageTimings;
+    }
+
+    /**
+     * Write all the pixels of the source using the output pixel format.
+     *
+     * For packed RGBA, output bytes are identical to writing red, green,
+     * blue, and alpha one byte at a time for each pixel, in raster order.
+     *
+     * @param source pixel source
+     * @param channel output channel (written from its current position)
+     */
+    public void write(ArgbRowSource source, FileChannel channel) throws IOException {
+        long position = channel.position();
+        write(source, channel, position, source.getHeight(), 0);
+        channel.position(position + mFormat.getFrameSize(source.getWidth(), source.getHeight()));
+    }
+
+    /**
+     * Write all the pixels of the source as rows [y, y + source height)
+     * of a frame that starts at the given file position.
+     *
+     * Positional writes do not change the channel position, so several
+     * writers (each with its own RawFileWriter) can fill disjoint parts
+     * of the same file concurrently.
+     *
+     * @param source pixel source (frame width is the source width)
+     * @param channel output channel
+     * @param framePosition file position of the frame
+     * @param frameHeight frame height
+     * @param y frame row of the first source row (must be a multiple
+     *        of the pixel format row alignment)
+     */
+    public void write(ArgbRowSource source, final FileChannel channel, long framePosition, int frameHeight, int y) throws IOException {
+        write(source, new FrameSink() {
+            @Override
+            public void write(ByteBuffer buffer, long position) throws IOException {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }, framePosition, frameHeight, y);
+    }
+
+    /**
+     * Write all the pixels of the source using the output pixel format
+     * into a sink, one stripe at a time (as soon as it is converted).
+     *
+     * Every stripe is written as one chunk per plane, each with its
+     * position in the frame, so planar formats are not written in frame
+     * order.
+     *
+     * @param source pixel source
+     * @param sink output sink
+     */
+    public void write(ArgbRowSource source, FrameSink sink) throws IOException {
+        write(source, sink, 0, source.getHeight(), 0);
+    }
+
+    private void write(ArgbRowSource source, FrameSink sink, long framePosition, int frameHeight, int y) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int stripeHeight = getStripeHeight(width, mFormat);
+        if (mParallelConverter != null) {
+            // give every worker a full stripe
+            stripeHeight *= mParallelConverter.getParallelism();
+        }
+        allocateBuffers(width, stripeHeight);
+        int[] zeroOffsets = new int[mFormat.getPlaneCount()];
+
+        for (int sy = 0; sy < height; sy += stripeHeight) {
+            int rows = Math.min(stripeHeight, height - sy);
+            StageTimings.Split split = (mStageTimings != null) ? mStageTimings.start() : null;
+            if (mParallelConverter != null) {
+                // 1-2. pull and convert the stripe pixels in parallel
+                mParallelConverter.convert(mFormat, source, sy, rows, mPlanes, zeroOffsets);
+            } else {
+                // 1. pull the stripe pixels
+                source.getRows(mPixels, sy, rows);
+                // 2. convert them into the output pixel format
+                mFormat.convert(mPixels, width, rows, mPlanes, zeroOffsets);
+            }
+            if (split != null) {
+                mStageTimings.lap("convert", split);
+            }
+            // 3. write the full stripe (one chunk per plane)
+            for (int plane = 0; plane < mPlanes.length; plane++) {
+                int rowBytes = mFormat.getPlaneRowBytes(plane, width);
+                long position = framePosition + mFormat.getPlaneOffset(plane, width, frameHeight)
+                        + (long) ((y + sy) >> mFormat.getPlaneVerticalShift(plane)) * rowBytes;
+                ByteBuffer buffer = mPlanes[plane];
+                buffer.clear();
+                buffer.limit(mFormat.getPlaneRows(plane, rows) * rowBytes);
+                sink.write(buffer, position);
+            }
+            if (split != null) {
+                mStageTimings.stop("write", split);
+            }
+        }
+    }
+
+    /**
+     * Write all the pixels of the source using the output pixel format
+     * into a memory-mapped file.
+     *
+     * The file is pre-sized to the frame size, and the rows are converted
+     * straight into the mapping, which avoids the user-space copies of
+     * the buffered writers. Output bytes are identical to write().
+     *
+     * @param source pixel source
+     * @param channel output channel (must be open for reading and writing)
+     */
+    public void writeMapped(ArgbRowSource source, FileChannel channel) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        long size = mFormat.getFrameSize(width, height);
+        int alignment = mFormat.getRowAlignment();
+        int stripeHeight = getStripeHeight(width, mFormat);
+        allocateBuffers(width, stripeHeight);
+        int planeCount = mFormat.getPlaneCount();
+
+        // 1. pre-size the file
+        channel.truncate(size);
+        if (size > 0 && channel.size() < size) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        // 2. map the file in windows of full (aligned) rows
+        long rowSize = Math.max(1, size / Math.max(1, height));
+        int windowHeight = (int) Math.max(1, MAPPING_SIZE / rowSize);
+        windowHeight = Math.max(alignment, (windowHeight / alignment) * alignment);
+        MappedByteBuffer[] mappings = new MappedByteBuffer[planeCount];
+        int[] offsets = new int[planeCount];
+        for (int windowY = 0; windowY < height; windowY += windowHeight) {
+            int windowRows = Math.min(windowHeight, height - windowY);
+            for (int plane = 0; plane < planeCount; plane++) {
+                int rowBytes = mFormat.getPlaneRowBytes(plane, width);
+                long position = mFormat.getPlaneOffset(plane, width, height)
+                        + (long) (windowY >> mFormat.getPlaneVerticalShift(plane)) * rowBytes;
+                mappings[plane] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        position, (long) mFormat.getPlaneRows(plane, windowRows) * rowBytes);
+                offsets[plane] = 0;
+            }
+            // 3. convert the stripes straight into the mapping
+            StageTimings.Split split = (mStageTimings != null) ? mStageTimings.start() : null;
+            convertRows(source, windowY, windowRows, stripeHeight, mappings, offsets);
+            if (split != null) {
+                mStageTimings.stop("convert", split);
+            }
+        }
+    }
+
+    /**
+     * Convert all the pixels of the source into an in-memory frame using
+     * the output pixel format. Output bytes are identical to write().
+     *
+     * @param source pixel source
+     * @param frame output buffer (the frame is written at its position,
+     *        which does not change)
+     */
+    public void convert(ArgbRowSource source, ByteBuffer frame) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int stripeHeight = getStripeHeight(width, mFormat);
+        allocateBuffers(width, stripeHeight);
+        int planeCount = mFormat.getPlaneCount();
+        if (frame.remaining() < mFormat.getFrameSize(width, height)) {
+            throw new IllegalArgumentException("frame buffer too small: " + frame.remaining() + " bytes");
+        }
+
+        // 1. get a view of every plane
+        ByteBuffer[] planes = new ByteBuffer[planeCount];
+        int[] offsets = new int[planeCount];
+        for (int plane = 0; plane < planeCount; plane++) {
+            ByteBuffer view = frame.duplicate();
+            int position = frame.position() + (int) mFormat.getPlaneOffset(plane, width, height);
+            view.position(position);
+            view.limit(position + mFormat.getPlaneRows(plane, height) * mFormat.getPlaneRowBytes(plane, width));
+            planes[plane] = view.slice();
+        }
+        // 2. convert the stripes straight into the planes
+        convertRows(source, 0, height, stripeHeight, planes, offsets);
+    }
+
+    private void convertRows(ArgbRowSource source, int y0, int height, int stripeHeight, ByteBuffer[] planes, int[] offsets) {
+        if (mParallelConverter != null) {
+            mParallelConverter.convert(mFormat, source, y0, height, planes, offsets);
+            return;
+        }
+        int width = source.getWidth();
+        for (int y = y0; y < y0 + height; y += stripeHeight) {
+            int rows = Math.min(stripeHeight, y0 + height - y);
+            source.getRows(mPixels, y, rows);
+            for (int plane = 0; plane < planes.length; plane++) {
+                offsets[plane] = ((y - y0) >> mFormat.getPlaneVerticalShift(plane)) * mFormat.getPlaneRowBytes(plane, width);
+            }
+            mFormat.convert(mPixels, width, rows, planes, offsets);
+        }
+    }
+
+    /**
+     * Get the size of the stripe buffers (in bytes).
+     */
+    public long getBufferBytes() {
+        long bytes = (mPixels != null) ? 4L * mPixels.length : 0;
+        if (mPlanes != null) {
+            for (ByteBuffer plane : mPlanes) {
+                bytes += (plane != null) ? plane.capacity() : 0;
+            }
+        }
+        return bytes;
+    }
+
+    private void allocateBuffers(int width, int stripeHeight) {
+        // reuse the buffers from previous calls when large enough
+        int numberOfPixels = width * stripeHeight;
+        if (mPixels == null || mPixels.length < numberOfPixels) {
+            mPixels = new int[numberOfPixels];
+        }
+        if (mPlanes == null) {
+            mPlanes = new ByteBuffer[mFormat.getPlaneCount()];
+        }
+        for (int plane = 0; plane < mPlanes.length; plane++) {
+            int size = mFormat.getPlaneRows(plane, stripeHeight) * mFormat.getPlaneRowBytes(plane, width);
+            if (mPlanes[plane] == null || mPlanes[plane].capacity() < size) {
+                mPlanes[plane] = ByteBuffer.allocateDirect(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.facebook.imgapp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// RawPixelFormat: raw output pixel formats, and their (fused, one pass)
+// conversion kernels from packed ARGB pixels.
+//
+// Supported formats (ffmpeg pix_fmt names in parentheses):
+// * rgba (rgba), bgra (bgra), rgb24 (rgb24): packed
+// * yuv444p (yuv444p): planar Y, U, V
+// * i420 (yuv420p): planar Y, U, V, chroma subsampled 2x2
+// * nv12 (nv12), nv21 (nv21): planar Y, interleaved UV (VU for nv21),
+//   chroma subsampled 2x2
+//
+// YUV formats use either the BT.601 or BT.709 matrix, and either full
+// (0-255) or limited (16-235 luma, 16-240 chroma) range. Alpha is
+// dropped. Conversion uses 16-bit fixed point with rounding. Compared
+// with ffmpeg's swscale (`-vf scale=out_color_matrix=<bt601|bt709>:out_range=<full|limited>`)
+// luma and 4:4:4 chroma are within +/-1.
+// Subsampled chroma is the 2x2 box average of the source pixels (edges
+// use the 1 or 2 pixels available), i.e. within +/-1 of the 2x2 box
+// average of swscale's yuv444p chroma. swscale's own 4:2:0 chroma is not
+// a box: it resamples the chroma rows with its (bicubic by default)
+// scaler, and for odd widths it averages the last column with the first
+// pixel of the next row. Expect differences of several units on smooth
+// gradients, and much larger ones in the last column of odd widths.
+public abstract class RawPixelFormat {
+    private final String mName;
+
+    protected RawPixelFormat(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public static final RawPixelFormat RGBA = new PackedFormat("rgba", 4);
+    public static final RawPixelFormat BGRA = new PackedFormat("bgra", 4);
+    public static final RawPixelFormat RGB24 = new PackedFormat("rgb24", 3);
+    // YUV formats, by "<name>/<matrix>/<range>" (formats are immutable,
+    // and RawFileWriter keeps its buffers while the format is the same)
+    private static final Map<String, RawPixelFormat> mYuvFormats = new ConcurrentHashMap<>();
+
+    /**
+     * Get a pixel format by name. The same parameters get the same
+     * instance.
+     *
+     * @param name one of "rgba", "bgra", "rgb24", "yuv444p", "i420"
+     *        (or "yuv420p"), "nv12", and "nv21"
+     * @param matrix "bt601" or "bt709" (YUV formats only)
+     * @param range "full" or "limited" (YUV formats only)
+     * @throws IllegalArgumentException on invalid parameters
+     */
+    public static RawPixelFormat get(String name, String matrix, String range) {
+        switch (name) {
+            case "rgba":
+                return RGBA;
+            case "bgra":
+                return BGRA;
+            case "rgb24":
+                return RGB24;
+            case "yuv444p":
+            case "i420":
+            case "yuv420p":
+            case "nv12":
+            case "nv21":
+                return getYuvFormat(name.equals("yuv420p") ? "i420" : name, matrix, range);
+            default:
+                throw new IllegalArgumentException("invalid pixel format: " + name);
+        }
+    }
+
+    private static RawPixelFormat getYuvFormat(String name, String matrix, String range) {
+        String key = name + "/" + matrix + "/" + range;
+        RawPixelFormat format = mYuvFormats.get(key);
+        if (format == null) {
+            // invalid parameters throw before anything is cached
+            RawPixelFormat newFormat = new YuvFormat(name, matrix, range);
+            format = mYuvFormats.putIfAbsent(key, newFormat);
+            if (format == null) {
+                format = newFormat;
+            }
+        }
+        return format;
+    }
+
+    public abstract int getPlaneCount();
+
+    // number of bytes of a row of the plane
+    public abstract int getPlaneRowBytes(int plane, int width);
+
+    // vertical subsampling of the plane (log2)
+    public abstract int getPlaneVerticalShift(int plane);
+
+    // position of the plane in the frame
+    public abstract long getPlaneOffset(int plane, int width, int height);
+
+    public long getFrameSize(int width, int height) {
+        int last = getPlaneCount() - 1;
+        return getPlaneOffset(last, width, height) + (long) getPlaneRows(last, height) * getPlaneRowBytes(last, width);
+    }
+
+    // number of rows of the plane for rows image rows (starting at an
+    // aligned row)
+    public int getPlaneRows(int plane, int rows) {
+        int shift = getPlaneVerticalShift(plane);
+        return (rows + (1 << shift) - 1) >> shift;
+    }
+
+    // stripes of rows must start at a multiple of this
+    public int getRowAlignment() {
+        int shift = 0;
+        for (int plane = 0; plane < getPlaneCount(); plane++) {
+            shift = Math.max(shift, getPlaneVerticalShift(plane));
+        }
+        return 1 << shift;
+    }
+
+    /**
+     * Convert rows of packed ARGB pixels.
+     *
+     * @param argb packed ARGB pixels (stride is width)
+     * @param width image width
+     * @param rows number of rows
+     * @param planes output buffers (one per plane, absolute positions)
+     * @param planeOffsets position in each plane buffer of the first
+     *        (plane) row of the stripe
+     */
+    public abstract void convert(int[] argb, int width, int rows, ByteBuffer[] planes, int[] planeOffsets);
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    // PackedFormat: single-plane RGB formats
+    private static class PackedFormat extends RawPixelFormat {
+        private final int mBytesPerPixel;
+
+        PackedFormat(String name, int bytesPerPixel) {
+            super(name);
+            mBytesPerPixel = bytesPerPixel;
+        }
+
+        @Override
+        public int getPlaneCount() {
+            return 1;
+        }
+
+        @Override
+        public int getPlaneRowBytes(int plane, int width) {
+            return mBytesPerPixel * width;
+        }
+
+        @Override
+        public int getPlaneVerticalShift(int plane) {
+            return 0;
+        }
+
+        @Override
+        public long getPlaneOffset(int plane, int width, int height) {
+            return 0;
+        }
+
+        @Override
+        public void convert(int[] argb, int width, int rows, ByteBuffer[] planes, int[] planeOffsets) {
+            ByteBuffer dst = planes[0];
+            int offset = planeOffsets[0];
+            int numberOfPixels = width * rows;
+            if (this == RGBA) {
+                // ARGB -> RGBA is a left rotation by one byte
+                for (int i = 0; i < numberOfPixels; i++, offset += 4) {
+                    dst.putInt(offset, Integer.rotateLeft(argb[i], 8));
+                }
+            } else if (this == BGRA) {
+                // ARGB -> BGRA is a byte swap
+                for (int i = 0; i < numberOfPixels; i++, offset += 4) {
+                    dst.putInt(offset, Integer.reverseBytes(argb[i]));
+                }
+            } else {
+                for (int i = 0; i < numberOfPixels; i++, offset += 3) {
+                    int pixel = argb[i];
+                    dst.put(offset, (byte) (pixel >> 16));
+                    dst.put(offset + 1, (byte) (pixel >> 8));
+                    dst.put(offset + 2, (byte) pixel);
+                }
+            }
+        }
+    }
+
+    // YuvFormat: planar YUV formats
+    private static class YuvFormat extends RawPixelFormat {
+        private final static int SHIFT = 16;
+        private final static int HALF = 1 << (SHIFT - 1);
+        private final boolean mSubsampled;
+        private final boolean mInterleaved;
+        // interleaved VU (instead of UV)
+        private final boolean mSwapped;
+        // fixed-point coefficients
+        private final int mYR, mYG, mYB, mYOffset;
+        private final int mUR, mUG, mUB;
+        private final int mVR, mVG, mVB, mCOffset;
+
+        YuvFormat(String name, String matrix, String range) {
+            super(name);
+            mSubsampled = !name.equals("yuv444p");
+            mInterleaved = name.equals("nv12") || name.equals("nv21");
+            mSwapped = name.equals("nv21");
+            double kr;
+            double kb;
+            if (matrix.equals("bt601")) {
+                kr = 0.299;
+                kb = 0.114;
+            } else if (matrix.equals("bt709")) {
+                kr = 0.2126;
+                kb = 0.0722;
+            } else {
+                throw new IllegalArgumentException("invalid color matrix: " + matrix);
+            }
+            double kg = 1.0 - kr - kb;
+            double yScale;
+            double cScale;
+            int yOffset;
+            if (range.equals("full")) {
+                yScale = 1.0;
+                cScale = 1.0;
+                yOffset = 0;
+            } else if (range.equals("limited")) {
+                yScale = 219.0 / 255.0;
+                cScale = 224.0 / 255.0;
+                yOffset = 16;
+            } else {
+                throw new IllegalArgumentException("invalid color range: " + range);
+            }
+            double one = 1 << SHIFT;
+            mYR = (int) Math.round(kr * yScale * one);
+            mYG = (int) Math.round(kg * yScale * one);
+            mYB = (int) Math.round(kb * yScale * one);
+            mYOffset = (yOffset << SHIFT) + HALF;
+            mUR = (int) Math.round(-kr / (2 * (1 - kb)) * cScale * one);
+            mUG = (int) Math.round(-kg / (2 * (1 - kb)) * cScale * one);
+            mUB = (int) Math.round(0.5 * cScale * one);
+            mVR = (int) Math.round(0.5 * cScale * one);
+            mVG = (int) Math.round(-kg / (2 * (1 - kr)) * cScale * one);
+            mVB = (int) Math.round(-kb / (2 * (1 - kr)) * cScale * one);
+            mCOffset = (128 << SHIFT) + HALF;
+        }
+
+        @Override
+        public int getPlaneCount() {
+            return mInterleaved ? 2 : 3;
+        }
+
+        @Override
+        public int getPlaneRowBytes(int plane, int width) {
+            if (plane == 0 || !mSubsampled) {
+                return width;
+            }
+            int chromaWidth = (width + 1) / 2;
+            return mInterleaved ? 2 * chromaWidth : chromaWidth;
+        }
+
+        @Override
+        public int getPlaneVerticalShift(int plane) {
+            return (plane == 0 || !mSubsampled) ? 0 : 1;
+        }
+
+        @Override
+        public long getPlaneOffset(int plane, int width, int height) {
+            long offset = 0;
+            for (int p = 0; p < plane; p++) {
+                offset += (long) getPlaneRows(p, height) * getPlaneRowBytes(p, width);
+            }
+            return offset;
+        }
+
+        private static int clip(int value) {
+            return (value < 0) ? 0 : ((value > 255) ? 255 : value);
+        }
+
+        @Override
+        public void convert(int[] argb, int width, int rows, ByteBuffer[] planes, int[] planeOffsets) {
+            // 1. luma
+            ByteBuffer yPlane = planes[0];
+            int yOffset = planeOffsets[0];
+            int numberOfPixels = width * rows;
+            for (int i = 0; i < numberOfPixels; i++) {
+                int pixel = argb[i];
+                int r = (pixel >> 16) & 0xff;
+                int g = (pixel >> 8) & 0xff;
+                int b = pixel & 0xff;
+                yPlane.put(yOffset + i, (byte) clip((mYR * r + mYG * g + mYB * b + mYOffset) >> SHIFT));
+            }
+            // 2. chroma
+            if (!mSubsampled) {
+                ByteBuffer uPlane = planes[1];
+                ByteBuffer vPlane = planes[2];
+                int uOffset = planeOffsets[1];
+                int vOffset = planeOffsets[2];
+                for (int i = 0; i < numberOfPixels; i++) {
+                    int pixel = argb[i];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    uPlane.put(uOffset + i, (byte) clip((mUR * r + mUG * g + mUB * b + mCOffset) >> SHIFT));
+                    vPlane.put(vOffset + i, (byte) clip((mVR * r + mVG * g + mVB * b + mCOffset) >> SHIFT));
+                }
+                return;
+            }
+            // 2x2 box average of the RGB values (edges use 1 or 2 pixels)
+            int chromaWidth = (width + 1) / 2;
+            for (int cy = 0; 2 * cy < rows; cy++) {
+                int row0 = 2 * cy * width;
+                int row1 = (2 * cy + 1 < rows) ? row0 + width : row0;
+                int rowShift = (row1 != row0) ? 1 : 0;
+                for (int cx = 0; cx < chromaWidth; cx++) {
+                    int x0 = 2 * cx;
+                    int x1 = (x0 + 1 < width) ? x0 + 1 : x0;
+                    int shift = rowShift + ((x1 != x0) ? 1 : 0);
+                    int p00 = argb[row0 + x0];
+                    int p01 = argb[row0 + x1];
+                    int p10 = argb[row1 + x0];
+                    int p11 = argb[row1 + x1];
+                    // duplicated pixels are counted once
+                    int r = ((p00 >> 16) & 0xff);
+                    int g = ((p00 >> 8) & 0xff);
+                    int b = (p00 & 0xff);
+                    if (x1 != x0) {
+                        r += (p01 >> 16) & 0xff;
+                        g += (p01 >> 8) & 0xff;
+                        b += p01 & 0xff;
+                    }
+                    if (row1 != row0) {
+                        r += (p10 >> 16) & 0xff;
+                        g += (p10 >> 8) & 0xff;
+                        b += p10 & 0xff;
+                        if (x1 != x0) {
+                            r += (p11 >> 16) & 0xff;
+                            g += (p11 >> 8) & 0xff;
+                            b += p11 & 0xff;
+                        }
+                    }
+                    int u = clip((mUR * r + mUG * g + mUB * b + (mCOffset << shift)) >> (SHIFT + shift));
+                    int v = clip((mVR * r + mVG * g + mVB * b + (mCOffset << shift)) >> (SHIFT + shift));
+                    if (mInterleaved) {
+                        int offset = planeOffsets[1] + cy * 2 * chromaWidth + 2 * cx;
+                        planes[1].put(offset, (byte) (mSwapped ? v : u));
+                        planes[1].put(offset + 1, (byte) (mSwapped ? u : v));
+                    } else {
+                        planes[1].put(planeOffsets[1] + cy * chromaWidth + cx, (byte) u);
+                        planes[2].put(planeOffsets[2] + cy * chromaWidth + cx, (byte) v);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// StageTimings: accumulates the wall time and thread CPU time of the
+// stages of a job (e.g. "read", "decode", "convert", "write").
+// Stages can be measured several times (e.g. once per stripe), and from
+// several threads: a Split is started and stopped in the same thread,
+// and the CPU time is the one of that thread.
+// The clock is provided by the caller.
+public class StageTimings {
+
+    // Clock: wall time, and CPU time of the calling thread (in ns)
+    public interface Clock {
+        long getWallNs();
+        long getCpuNs();
+    }
+
+    // Split: a running measurement
+    public static class Split {
+        private long mWallNs;
+        private long mCpuNs;
+
+        private Split(long wallNs, long cpuNs) {
+            mWallNs = wallNs;
+            mCpuNs = cpuNs;
+        }
+    }
+
+    // Stage: accumulated timings of a stage
+    private static class Stage {
+        long mWallNs = 0;
+        long mCpuNs = 0;
+        int mCount = 0;
+    }
+
+    private final Clock mClock;
+    private final Map<String, Stage> mStages = new LinkedHashMap<>();
+
+
+    public StageTimings(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Start a measurement.
+     */
+    public Split start() {
+        return new Split(mClock.getWallNs(), mClock.getCpuNs());
+    }
+
+    /**
+     * Add the time since the split started to the stage.
+     */
+    public void stop(String stage, Split split) {
+        add(stage, mClock.getWallNs() - split.mWallNs, mClock.getCpuNs() - split.mCpuNs);
+    }
+
+    /**
+     * Add the time since the split started to the stage, and restart
+     * the split (for consecutive stages).
+     */
+    public void lap(String stage, Split split) {
+        long wallNs = mClock.getWallNs();
+        long cpuNs = mClock.getCpuNs();
+        add(stage, wallNs - split.mWallNs, cpuNs - split.mCpuNs);
+        split.mWallNs = wallNs;
+        split.mCpuNs = cpuNs;
+    }
+
+    public synchronized void add(String stage, long wallNs, long cpuNs) {
+        Stage value = mStages.get(stage);
+        if (value == null) {
+            value = new Stage();
+            mStages.put(stage, value);
+        }
+        value.mWallNs += wallNs;
+        value.mCpuNs += cpuNs;
+        value.mCount += 1;
+    }
+
+    public synchronized List<String> getStageNames() {
+        return new ArrayList<>(mStages.keySet());
+    }
+
+    public synchronized long getWallNs(String stage) {
+        Stage value = mStages.get(stage);
+        return (value != null) ? value.mWallNs : 0;
+    }
+
+    public synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, Stage> entry : mStages.entrySet()) {
+            JsonObject stage = new JsonObject();
+            stage.addProperty("wallNs", entry.getValue().mWallNs);
+            stage.addProperty("cpuNs", entry.getValue().mCpuNs);
+            stage.addProperty("count", entry.getValue().mCount);
+            json.add(entry.getKey(), stage);
+        }
+        return json;
+    }
+}
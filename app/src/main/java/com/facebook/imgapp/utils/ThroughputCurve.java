@@ -0,0 +1,107 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// ThroughputCurve: throughput (images/s, and megapixels/s) measured at
+// several thread counts.
+// The speedup and the parallel efficiency of every point are relative to
+// the first point (normally 1 thread): the efficiency is the speedup
+// divided by the thread count ratio (1.0 is perfect scaling). Points
+// can also keep the per-image latencies (see LatencyHistograms).
+public class ThroughputCurve {
+
+    // Point: a single thread count measurement
+    private static class Point {
+        final int mThreads;
+        final long mImages;
+        final long mPixels;
+        final long mWallNs;
+        final LatencyHistograms mLatency;
+
+        Point(int threads, long images, long pixels, long wallNs, LatencyHistograms latency) {
+            mThreads = threads;
+            mImages = images;
+            mPixels = pixels;
+            mWallNs = wallNs;
+            mLatency = latency;
+        }
+
+        double getImagesPerSec() {
+            return mImages * 1e9 / mWallNs;
+        }
+
+        double getMegapixelsPerSec() {
+            return mPixels * 1e3 / mWallNs;
+        }
+    }
+
+    private final List<Point> mPoints = new ArrayList<>();
+
+
+    /**
+     * Add a measurement.
+     *
+     * @param threads number of concurrent workers
+     * @param images number of images processed
+     * @param pixels number of pixels processed
+     * @param wallNs wall time to process all the images (in ns)
+     * @param latency per-image latencies (null if not measured)
+     */
+    public void add(int threads, long images, long pixels, long wallNs, LatencyHistograms latency) {
+        mPoints.add(new Point(threads, images, pixels, Math.max(1, wallNs), latency));
+    }
+
+    public int getThreads(int index) {
+        return mPoints.get(index).mThreads;
+    }
+
+    public LatencyHistograms getLatency(int index) {
+        return mPoints.get(index).mLatency;
+    }
+
+    public int size() {
+        return mPoints.size();
+    }
+
+    public double getSpeedup(int index) {
+        return mPoints.get(index).getImagesPerSec() / mPoints.get(0).getImagesPerSec();
+    }
+
+    public double getEfficiency(int index) {
+        double threadRatio = (double) mPoints.get(index).mThreads / mPoints.get(0).mThreads;
+        return getSpeedup(index) / threadRatio;
+    }
+
+    public String toString(int index) {
+        Point point = mPoints.get(index);
+        return String.format(Locale.US, "threads: %d images: %d wall: %.3f ms images/s: %.2f MP/s: %.2f speedup: %.2f efficiency: %.2f",
+                point.mThreads, point.mImages, point.mWallNs / 1e6, point.getImagesPerSec(),
+                point.getMegapixelsPerSec(), getSpeedup(index), getEfficiency(index));
+    }
+
+    public JsonArray toJson() {
+        JsonArray json = new JsonArray();
+        for (int i = 0; i < mPoints.size(); i++) {
+            Point point = mPoints.get(i);
+            JsonObject value = new JsonObject();
+            value.addProperty("threads", point.mThreads);
+            value.addProperty("images", point.mImages);
+            value.addProperty("megapixels", point.mPixels / 1e6);
+            value.addProperty("wallMs", point.mWallNs / 1e6);
+            value.addProperty("imagesPerSec", point.getImagesPerSec());
+            value.addProperty("megapixelsPerSec", point.getMegapixelsPerSec());
+            value.addProperty("speedup", getSpeedup(i));
+            value.addProperty("efficiency", getEfficiency(i));
+            if (point.mLatency != null) {
+                value.add("latency", point.mLatency.toSummaryJson());
+            }
+            json.add(value);
+        }
+        return json;
+    }
+}
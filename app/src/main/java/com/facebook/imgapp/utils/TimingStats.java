@@ -0,0 +1,96 @@
+package com.facebook.imgapp.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+
+// TimingStats: summary statistics (min, median, mean, and sample standard
+// deviation) of a set of timing samples.
+public class TimingStats {
+    private final long[] mSamplesNs;
+    private final long[] mSortedNs;
+
+
+    /**
+     * @param samplesNs timing samples (in ns), in run order
+     */
+    public TimingStats(long[] samplesNs) {
+        if (samplesNs.length == 0) {
+            throw new IllegalArgumentException("need at least one sample");
+        }
+        mSamplesNs = samplesNs.clone();
+        mSortedNs = samplesNs.clone();
+        Arrays.sort(mSortedNs);
+    }
+
+    public int getCount() {
+        return mSamplesNs.length;
+    }
+
+    public long[] getSamplesNs() {
+        return mSamplesNs.clone();
+    }
+
+    public double getMinNs() {
+        return mSortedNs[0];
+    }
+
+    public double getMaxNs() {
+        return mSortedNs[mSortedNs.length - 1];
+    }
+
+    public double getMedianNs() {
+        int n = mSortedNs.length;
+        if (n % 2 == 1) {
+            return mSortedNs[n / 2];
+        }
+        return (mSortedNs[n / 2 - 1] + mSortedNs[n / 2]) / 2.0;
+    }
+
+    public double getMeanNs() {
+        double sum = 0;
+        for (long sample : mSamplesNs) {
+            sum += sample;
+        }
+        return sum / mSamplesNs.length;
+    }
+
+    /**
+     * Get the sample standard deviation (0 for a single sample).
+     */
+    public double getStddevNs() {
+        int n = mSamplesNs.length;
+        if (n < 2) {
+            return 0;
+        }
+        double mean = getMeanNs();
+        double sum = 0;
+        for (long sample : mSamplesNs) {
+            sum += (sample - mean) * (sample - mean);
+        }
+        return Math.sqrt(sum / (n - 1));
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", getCount());
+        json.addProperty("minMs", getMinNs() / 1e6);
+        json.addProperty("medianMs", getMedianNs() / 1e6);
+        json.addProperty("meanMs", getMeanNs() / 1e6);
+        json.addProperty("stddevMs", getStddevNs() / 1e6);
+        json.addProperty("maxMs", getMaxNs() / 1e6);
+        JsonArray samples = new JsonArray();
+        for (long sample : mSamplesNs) {
+            samples.add(sample / 1e6);
+        }
+        json.add("samplesMs", samples);
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d min: %.3f ms median: %.3f ms mean: %.3f ms stddev: %.3f ms",
+                getCount(), getMinNs() / 1e6, getMedianNs() / 1e6, getMeanNs() / 1e6, getStddevNs() / 1e6);
+    }
+}
@@ -0,0 +1,205 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+// BaselineComparisonTest: checks the regression decisions on synthetic
+// result files (JobResult JSON), the t quantile table boundaries, and
+// the exit codes of the command.
+public class BaselineComparisonTest {
+    private final static double THRESHOLD_PERCENT = 5.0;
+    // 100 ms, with little noise
+    private final static double[] BASELINE = {100, 101, 99, 100, 100};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static JsonArray getSamples(double... samplesMs) {
+        JsonArray samples = new JsonArray();
+        for (double sampleMs : samplesMs) {
+            samples.add(sampleMs);
+        }
+        return samples;
+    }
+
+    // result with "iterations" samples
+    static JsonObject getResult(double... samplesMs) {
+        JsonObject iterations = new JsonObject();
+        iterations.add("samplesMs", getSamples(samplesMs));
+        JsonObject result = new JsonObject();
+        result.add("iterations", iterations);
+        return result;
+    }
+
+    // add a "sweep" point to a result
+    static void addSweepPoint(JsonObject result, String format, int quality, double... samplesMs) {
+        if (!result.has("sweep")) {
+            result.add("sweep", new JsonArray());
+        }
+        JsonObject encode = new JsonObject();
+        encode.add("samplesMs", getSamples(samplesMs));
+        JsonObject point = new JsonObject();
+        point.addProperty("format", format);
+        point.addProperty("quality", quality);
+        point.add("encode", encode);
+        result.getAsJsonArray("sweep").add(point);
+    }
+
+    static BaselineComparison.Metric compare(JsonObject baseline, JsonObject current) {
+        BaselineComparison comparison = new BaselineComparison(baseline, current, THRESHOLD_PERCENT);
+        assertEquals(1, comparison.getMetrics().size());
+        // the JSON form must be serializable (no NaN or infinity)
+        new Gson().toJson(comparison.toJson());
+        return comparison.getMetrics().get(0);
+    }
+
+    @Test
+    public void testUnderThreshold() {
+        // significant (the interval is above 0), but under the threshold
+        BaselineComparison.Metric metric = compare(getResult(BASELINE), getResult(102, 103, 101, 102, 102));
+        assertEquals(2.0, metric.mDeltaPercent, 1e-9);
+        assertTrue(metric.mCiLowPercent > 0);
+        assertFalse(metric.mRegression);
+    }
+
+    @Test
+    public void testNoisySlowdown() {
+        // over the threshold, but the interval crosses 0
+        BaselineComparison.Metric metric = compare(getResult(100, 60, 140, 100, 100), getResult(110, 50, 170, 110, 110));
+        assertEquals(10.0, metric.mDeltaPercent, 1e-9);
+        assertTrue(metric.mCiLowPercent < 0);
+        assertTrue(metric.mCiHighPercent > metric.mDeltaPercent);
+        assertFalse(metric.mRegression);
+    }
+
+    @Test
+    public void testSignificantSlowdown() {
+        BaselineComparison.Metric metric = compare(getResult(BASELINE), getResult(110, 111, 109, 110, 110));
+        assertEquals(10.0, metric.mDeltaPercent, 1e-9);
+        assertTrue(metric.mCiLowPercent > 0);
+        assertTrue(metric.mRegression);
+        // speedups never regress
+        assertFalse(compare(getResult(110, 111, 109, 110, 110), getResult(BASELINE)).mRegression);
+    }
+
+    @Test
+    public void testSingleSample() {
+        // no interval: the threshold alone decides
+        BaselineComparison.Metric metric = compare(getResult(100), getResult(BASELINE));
+        assertTrue(Double.isNaN(metric.mCiLowPercent));
+        assertFalse(metric.toJson().has("ciLowPercent"));
+        assertFalse(compare(getResult(BASELINE), getResult(104)).mRegression);
+        assertTrue(compare(getResult(BASELINE), getResult(106)).mRegression);
+    }
+
+    @Test
+    public void testUnmatched() {
+        JsonObject baseline = getResult(BASELINE);
+        addSweepPoint(baseline, "JPEG", 90, BASELINE);
+        // a regression only in the baseline has nothing to compare to
+        addSweepPoint(baseline, "PNG", 100, 10, 10, 10);
+        JsonObject current = getResult(BASELINE);
+        addSweepPoint(current, "JPEG", 90, 110, 111, 109, 110, 110);
+        addSweepPoint(current, "JPEG", 80, 200, 200, 200);
+        BaselineComparison comparison = new BaselineComparison(baseline, current, THRESHOLD_PERCENT);
+        assertEquals(2, comparison.getMetrics().size());
+        assertEquals("iterations", comparison.getMetrics().get(0).mName);
+        assertEquals("sweep/JPEG/q90", comparison.getMetrics().get(1).mName);
+        assertTrue(comparison.hasRegression());
+        JsonArray unmatched = comparison.toJson().getAsJsonArray("unmatched");
+        assertEquals(2, unmatched.size());
+        assertEquals("sweep/JPEG/q80", unmatched.get(0).getAsString());
+        assertEquals("sweep/PNG/q100", unmatched.get(1).getAsString());
+    }
+
+    @Test
+    public void testZeroBaseline() {
+        JsonObject baseline = getResult(0, 0, 0);
+        addSweepPoint(baseline, "JPEG", 90, BASELINE);
+        JsonObject current = getResult(1, 1, 1);
+        addSweepPoint(current, "JPEG", 90, BASELINE);
+        BaselineComparison comparison = new BaselineComparison(baseline, current, THRESHOLD_PERCENT);
+        assertEquals(1, comparison.getMetrics().size());
+        assertEquals("sweep/JPEG/q90", comparison.getMetrics().get(0).mName);
+        assertFalse(comparison.hasRegression());
+        JsonObject json = comparison.toJson();
+        assertEquals("iterations", json.getAsJsonArray("zeroBaseline").get(0).getAsString());
+        assertFalse(new Gson().toJson(json).contains("NaN"));
+    }
+
+    @Test
+    public void testTQuantile() {
+        assertEquals(12.706, BaselineComparison.getTQuantile(0.5), 0);
+        assertEquals(12.706, BaselineComparison.getTQuantile(1), 0);
+        assertEquals(12.706, BaselineComparison.getTQuantile(1.9), 0);
+        assertEquals(2.042, BaselineComparison.getTQuantile(30), 0);
+        assertEquals(2.042, BaselineComparison.getTQuantile(30.5), 0);
+        assertEquals(2.042, BaselineComparison.getTQuantile(39.9), 0);
+        assertEquals(2.021, BaselineComparison.getTQuantile(40), 0);
+        assertEquals(2.000, BaselineComparison.getTQuantile(60), 0);
+        assertEquals(1.980, BaselineComparison.getTQuantile(120), 0);
+        assertEquals(1.980, BaselineComparison.getTQuantile(1e9), 0);
+        assertEquals(1.960, BaselineComparison.getTQuantile(Double.POSITIVE_INFINITY), 0);
+    }
+
+    private String writeResult(String name, JsonObject result) throws IOException {
+        File file = mFolder.newFile(name);
+        Files.write(file.toPath(), new Gson().toJson(result).getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    // run the command, dropping its output
+    private static int run(String... args) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+        System.setOut(sink);
+        System.setErr(sink);
+        try {
+            return BaselineComparison.run(args);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    @Test
+    public void testExitCodes() throws IOException {
+        String baseline = writeResult("baseline.json", getResult(BASELINE));
+        String same = writeResult("same.json", getResult(101, 100, 99, 100, 100));
+        String slower = writeResult("slower.json", getResult(110, 111, 109, 110, 110));
+        String zero = writeResult("zero.json", getResult(0, 0, 0));
+        String invalid = writeResult("invalid.json", new JsonObject());
+        Files.write(new File(invalid).toPath(), "{\"iterations\": ".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(0, run(baseline, same));
+        assertEquals(1, run(baseline, slower));
+        // a threshold over the slowdown
+        assertEquals(0, run(baseline, slower, "15"));
+        // usage, unreadable or invalid files, and invalid threshold
+        assertEquals(2, run(baseline));
+        assertEquals(2, run(baseline, same, "5", "extra"));
+        assertEquals(2, run(baseline, new File(mFolder.getRoot(), "missing.json").getPath()));
+        assertEquals(2, run(baseline, invalid));
+        assertEquals(2, run(baseline, same, "five"));
+        // nothing to compare
+        assertEquals(2, run(zero, same));
+        assertEquals(2, run(writeResult("empty.json", new JsonObject()), same));
+    }
+}
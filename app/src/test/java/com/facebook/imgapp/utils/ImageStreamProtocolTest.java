@@ -0,0 +1,206 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ImageStreamProtocolTest: runs a loopback server and client over TCP,
+// checking the request/response framing, the frame chunks sent through
+// RawFileWriter (FrameSink path), and that failed requests get an error
+// response without stopping the server.
+// The server "decodes" a stand-in image format (int width, int height,
+// then the ARGB pixels), so no android codec is needed.
+public class ImageStreamProtocolTest {
+    private final static int WIDTH = 333;
+    private final static int HEIGHT = 3001;
+
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+    private final AtomicInteger mRequests = new AtomicInteger(0);
+
+    // StandInHandler: decodes the stand-in format, and streams the frame
+    static class StandInHandler implements ImageStreamProtocol.RequestHandler {
+        @Override
+        public boolean handle(ImageStreamProtocol.Request request, DataOutputStream out) throws IOException {
+            if (request.mParameters.containsKey("oom")) {
+                throw new OutOfMemoryError("stand-in allocation failure");
+            }
+            // an invalid pixel format throws (like a codec on a corrupt image)
+            RawPixelFormat format = RawPixelFormat.get(
+                    getParameter(request, "outputPixelFormat", "rgba"),
+                    getParameter(request, "outputColorMatrix", "bt601"),
+                    getParameter(request, "outputColorRange", "limited"));
+            ByteBuffer encoded = ByteBuffer.wrap(request.mEncoded);
+            int width = encoded.getInt();
+            int height = encoded.getInt();
+            if (width <= 0 || height <= 0 || encoded.remaining() != 4L * width * height) {
+                ImageStreamProtocol.writeError(out, "cannot decode image (" + request.mEncoded.length + " bytes)");
+                return false;
+            }
+            int[] pixels = new int[width * height];
+            encoded.asIntBuffer().get(pixels);
+            RawFileWriter writer = new RawFileWriter();
+            writer.setPixelFormat(format);
+            ImageStreamProtocol.writeHeader(out, format.getName(), width, height, format.getFrameSize(width, height));
+            writer.write(new RawFileWriterTest.ArrayRowSource(pixels, width, height), new ImageStreamProtocol.ChunkSink(out));
+            ImageStreamProtocol.writeEnd(out);
+            return true;
+        }
+
+        private static String getParameter(ImageStreamProtocol.Request request, String key, String defaultValue) {
+            String value = request.mParameters.get(key);
+            return (value != null) ? value : defaultValue;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try (Socket socket = mServerSocket.accept()) {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        mRequests.addAndGet(ImageStreamProtocol.serve(in, out, new StandInHandler()));
+                    } catch (IOException e) {
+                        // closed server socket, or dropped connection
+                    }
+                }
+            }
+        });
+        mServerThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mServerThread.join(10000);
+    }
+
+    static byte[] encode(int[] pixels, int width, int height) {
+        ByteBuffer encoded = ByteBuffer.allocate(8 + 4 * pixels.length);
+        encoded.putInt(width);
+        encoded.putInt(height);
+        encoded.asIntBuffer().put(pixels);
+        return encoded.array();
+    }
+
+    static byte[] convert(int[] pixels, int width, int height, RawPixelFormat format) {
+        RawFileWriter writer = new RawFileWriter();
+        writer.setPixelFormat(format);
+        ByteBuffer frame = ByteBuffer.allocate((int) format.getFrameSize(width, height));
+        writer.convert(new RawFileWriterTest.ArrayRowSource(pixels, width, height), frame);
+        return frame.array();
+    }
+
+    private static void send(DataOutputStream out, Map<String, String> parameters, byte[] encoded) throws IOException {
+        ImageStreamProtocol.writeRequest(out, parameters, encoded, encoded.length);
+    }
+
+    private static void assertServerError(DataInputStream in, String expected) {
+        try {
+            ImageStreamProtocol.readResponse(in);
+            fail("expected a server error");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("server error: "));
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+
+    @Test
+    public void testRequests() throws IOException, InterruptedException {
+        int[] pixels = RawFileWriterTest.getRandomPixels(WIDTH, HEIGHT, 1);
+        byte[] encoded = encode(pixels, WIDTH, HEIGHT);
+        Map<String, String> rgba = new HashMap<>();
+        Map<String, String> i420 = new HashMap<>();
+        i420.put("outputPixelFormat", "i420");
+        Map<String, String> invalidFormat = new HashMap<>();
+        invalidFormat.put("outputPixelFormat", "invalid");
+        Map<String, String> oom = new HashMap<>();
+        oom.put("oom", "1");
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServerSocket.getLocalPort())) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // 1. good request (packed, several stripes)
+            send(out, rgba, encoded);
+            ImageStreamProtocol.Response response = ImageStreamProtocol.readResponse(in);
+            assertEquals("rgba", response.mPixelFormat);
+            assertEquals(WIDTH, response.mWidth);
+            assertEquals(HEIGHT, response.mHeight);
+            assertArrayEquals(RawFileWriterTest.getReferenceRgba(pixels), response.mFrame);
+
+            // 2. error request (the handler reports it)
+            send(out, rgba, new byte[] {0, 0, 0, 1, 0, 0, 0, 1, 42});
+            assertServerError(in, "cannot decode image");
+
+            // 3. error requests (unchecked exception, and out of memory)
+            send(out, invalidFormat, encoded);
+            assertServerError(in, "invalid pixel format");
+            send(out, oom, encoded);
+            assertServerError(in, "OutOfMemoryError");
+
+            // 4. the connection keeps serving (planar chunks are not in
+            // frame order)
+            send(out, i420, encoded);
+            response = ImageStreamProtocol.readResponse(in);
+            assertEquals("i420", response.mPixelFormat);
+            assertArrayEquals(convert(pixels, WIDTH, HEIGHT, RawPixelFormat.get("i420", "bt601", "limited")), response.mFrame);
+        }
+
+        // 5. the server serves new connections
+        int[] small = RawFileWriterTest.getRandomPixels(3, 2, 2);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServerSocket.getLocalPort())) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            send(out, rgba, encode(small, 3, 2));
+            assertArrayEquals(RawFileWriterTest.getReferenceRgba(small), ImageStreamProtocol.readResponse(in).mFrame);
+        }
+        // wait for the server to see the client close the connection
+        for (int i = 0; i < 100 && mRequests.get() < 6; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(6, mRequests.get());
+    }
+
+    @Test
+    public void testInvalidRequest() throws IOException {
+        // a request with a bad header is a connection failure
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x12345678);
+        out.writeInt(ImageStreamProtocol.VERSION);
+        try {
+            ImageStreamProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("expected an invalid magic");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("invalid magic"));
+        }
+        // the end of the stream between requests is the client being done
+        assertNull(ImageStreamProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(new byte[0]))));
+    }
+}
@@ -0,0 +1,131 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// JobDispatcherTest: sends jobs through the dispatch path of the service
+// (a worker thread finishing the jobs, as the scheduler does), and checks
+// that only the reply of the first job carries the process startup.
+public class JobDispatcherTest {
+    private final static long PROCESS_START_MS = 100000;
+
+    // ManualClock: clock moved by the test
+    static class ManualClock implements JobDispatcher.Clock {
+        volatile long mNowMs = PROCESS_START_MS;
+
+        @Override
+        public long getNowMs() {
+            return mNowMs;
+        }
+    }
+
+    // Recorder: keeps the replies
+    static class Recorder implements JobDispatcher.Replies {
+        final List<Map<String, Object>> mReplies = new ArrayList<>();
+
+        @Override
+        public synchronized void reply(Map<String, Object> reply) {
+            mReplies.add(reply);
+            notifyAll();
+        }
+
+        synchronized List<Map<String, Object>> await(int count) throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + 10000;
+            while (mReplies.size() < count && System.currentTimeMillis() < deadlineMs) {
+                wait(100);
+            }
+            return new ArrayList<>(mReplies);
+        }
+    }
+
+    @Test
+    public void testOnlyFirstJobPaysStartup() throws InterruptedException {
+        ManualClock clock = new ManualClock();
+        Recorder recorder = new Recorder();
+        final ExecutorService worker = Executors.newSingleThreadExecutor();
+        // jobs are "input paths", and fail when empty
+        final List<String> ran = new ArrayList<>();
+        JobDispatcher<String> dispatcher = new JobDispatcher<>(PROCESS_START_MS, clock,
+                new JobDispatcher.Runner<String>() {
+                    @Override
+                    public void run(final String parameters, String jobId, ProcessJobCounter.Job job, final JobDispatcher.Done done) {
+                        worker.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (ran) {
+                                    ran.add(parameters);
+                                }
+                                done.onJobDone(!parameters.isEmpty());
+                            }
+                        });
+                    }
+                }, recorder);
+        try {
+            clock.mNowMs = PROCESS_START_MS + 412;
+            dispatcher.dispatch("/sdcard/green.heic", "first");
+            clock.mNowMs = PROCESS_START_MS + 9754;
+            dispatcher.dispatch("/sdcard/green.heic", null);
+            clock.mNowMs = PROCESS_START_MS + 12000;
+            dispatcher.dispatch("", null);
+
+            List<Map<String, Object>> replies = recorder.await(3);
+            assertEquals(3, replies.size());
+            assertEquals(3, dispatcher.getJobCount());
+
+            Map<String, Object> first = replies.get(0);
+            assertEquals("first", first.get(JobDispatcher.JOB_ID));
+            assertEquals("ok", first.get(JobDispatcher.STATUS));
+            assertEquals(1, first.get(JobDispatcher.JOB_NUMBER));
+            assertEquals(412L, first.get(JobDispatcher.PROCESS_AGE_MS));
+            assertEquals(412L, first.get(JobDispatcher.STARTUP_MS));
+            assertEquals(true, first.get(JobDispatcher.COLD_START));
+
+            Map<String, Object> second = replies.get(1);
+            assertEquals("2", second.get(JobDispatcher.JOB_ID));
+            assertEquals("ok", second.get(JobDispatcher.STATUS));
+            assertEquals(2, second.get(JobDispatcher.JOB_NUMBER));
+            assertEquals(9754L, second.get(JobDispatcher.PROCESS_AGE_MS));
+            assertFalse(second.containsKey(JobDispatcher.STARTUP_MS));
+            assertFalse(second.containsKey(JobDispatcher.COLD_START));
+
+            Map<String, Object> third = replies.get(2);
+            assertEquals("error", third.get(JobDispatcher.STATUS));
+            assertFalse(third.containsKey(JobDispatcher.STARTUP_MS));
+
+            // all the jobs ran in the same process
+            for (Map<String, Object> reply : replies) {
+                assertEquals(PROCESS_START_MS, reply.get(JobDispatcher.PROCESS_START_MS));
+            }
+        } finally {
+            worker.shutdown();
+            assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testSynchronousJob() {
+        // manifests are answered from the dispatching thread
+        ManualClock clock = new ManualClock();
+        Recorder recorder = new Recorder();
+        JobDispatcher<String> dispatcher = new JobDispatcher<>(PROCESS_START_MS, clock,
+                new JobDispatcher.Runner<String>() {
+                    @Override
+                    public void run(String parameters, String jobId, ProcessJobCounter.Job job, JobDispatcher.Done done) {
+                        done.onJobDone(true);
+                    }
+                }, recorder);
+        dispatcher.dispatch("/sdcard/jobs.json", "manifest");
+        assertEquals(1, recorder.mReplies.size());
+        assertEquals(true, recorder.mReplies.get(0).get(JobDispatcher.COLD_START));
+    }
+}
@@ -0,0 +1,167 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+// LatencyHistogramTest: checks the bucket precision (exact under 256 ns,
+// within 1% above, including around the power of 2 boundaries), the
+// percentiles of known distributions, and that merging the JSON forms of
+// two histograms equals recording both sets of values.
+public class LatencyHistogramTest {
+    // relative error of the log buckets (2^-7)
+    private final static double PRECISION = 1.0 / 128;
+    // largest recorded value (2^44 - 1 ns)
+    private final static long MAX_VALUE_NS = (1L << 44) - 1;
+
+    // value reported for a single sample (not clamped by the max)
+    private static long getReportedValue(long valueNs) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(valueNs);
+        histogram.record(MAX_VALUE_NS);
+        return histogram.getValueAtPercentileNs(50);
+    }
+
+    private static void assertWithinPrecision(String message, double expected, long actual) {
+        assertTrue(message + ": expected " + expected + " got " + actual,
+                actual >= expected && actual <= expected * (1 + PRECISION));
+    }
+
+    @Test
+    public void testExactValues() {
+        for (long value = 0; value < 256; value++) {
+            assertEquals(value, getReportedValue(value));
+        }
+    }
+
+    @Test
+    public void testBucketPrecision() {
+        // around the boundary of the exact buckets, and of every power of 2
+        for (int bits = 8; bits < 44; bits++) {
+            long power = 1L << bits;
+            for (long value : new long[] {power - 2, power - 1, power, power + 1, power + 2, power + power / 3}) {
+                assertWithinPrecision("value " + value, value, getReportedValue(value));
+            }
+        }
+        // and random values (the reported value is the highest of the
+        // bucket, so it is never lower)
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() & MAX_VALUE_NS;
+            assertWithinPrecision("value " + value, value, getReportedValue(value));
+        }
+    }
+
+    @Test
+    public void testClamp() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getMaxNs());
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(MAX_VALUE_NS, histogram.getMaxNs());
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentileNs(50));
+        assertEquals(MAX_VALUE_NS, histogram.getValueAtPercentileNs(100));
+    }
+
+    @Test
+    public void testUniformDistribution() {
+        // 1 ms to 100 ms, every 10 us (shuffled)
+        LatencyHistogram histogram = new LatencyHistogram();
+        int count = 9901;
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = 1000000L + 10000L * i;
+        }
+        Random random = new Random(2);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        for (long value : values) {
+            histogram.record(value);
+        }
+        assertEquals(count, histogram.getCount());
+        assertEquals(100000000L, histogram.getMaxNs());
+        // the sample at rank ceil(p * count)
+        assertWithinPrecision("p50", 1000000L + 10000L * 4950, histogram.getValueAtPercentileNs(50));
+        assertWithinPrecision("p90", 1000000L + 10000L * 8910, histogram.getValueAtPercentileNs(90));
+        assertWithinPrecision("p99", 1000000L + 10000L * 9801, histogram.getValueAtPercentileNs(99));
+        assertEquals(100000000L, histogram.getValueAtPercentileNs(100));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentileNs(50));
+    }
+
+    @Test
+    public void testBimodalDistribution() {
+        // 98% fast (around 2 ms), 2% slow (around 300 ms): p50 and p90
+        // are fast, p99 is slow
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            boolean slow = (i % 50) == 0;
+            histogram.record((slow ? 300000000L : 2000000L) + random.nextInt(1000));
+        }
+        assertTrue(histogram.getValueAtPercentileNs(50) < 2000000L * (1 + 2 * PRECISION));
+        assertTrue(histogram.getValueAtPercentileNs(90) < 2000000L * (1 + 2 * PRECISION));
+        assertTrue(histogram.getValueAtPercentileNs(99) >= 300000000L);
+        assertTrue(histogram.getMaxNs() < 300001000L);
+    }
+
+    @Test
+    public void testMergeJson() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        LatencyHistogram both = new LatencyHistogram();
+        Random random = new Random(4);
+        for (int i = 0; i < 5000; i++) {
+            // different ranges, so the merge has buckets from each side
+            long firstValue = (long) (1e6 * Math.exp(random.nextGaussian()));
+            long secondValue = 200 + random.nextInt(50000000);
+            first.record(firstValue);
+            second.record(secondValue);
+            both.record(firstValue);
+            both.record(secondValue);
+        }
+        // through the histogram file text (see LatencyHistograms.write())
+        Gson gson = new Gson();
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.addJson(gson.fromJson(gson.toJson(first.toJson()), JsonObject.class));
+        merged.addJson(gson.fromJson(gson.toJson(second.toJson()), JsonObject.class));
+        assertEquals(both.toJson(), merged.toJson());
+        assertEquals(both.getCount(), merged.getCount());
+        assertEquals(both.getMaxNs(), merged.getMaxNs());
+
+        // merging in memory gives the same
+        LatencyHistogram added = new LatencyHistogram();
+        added.add(first);
+        added.add(second);
+        assertEquals(both.toJson(), added.toJson());
+    }
+
+    @Test
+    public void testInvalidJson() {
+        JsonObject json = new LatencyHistogram().toJson();
+        json.addProperty("subBucketBits", 7);
+        try {
+            new LatencyHistogram().addJson(json);
+            fail("expected a different bucket layout");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new LatencyHistogram().addJson(new JsonObject());
+            fail("expected not a histogram");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
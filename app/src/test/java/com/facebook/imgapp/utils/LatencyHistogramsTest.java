@@ -0,0 +1,79 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// LatencyHistogramsTest: checks that the histograms resolved per format
+// are the named ones of the set ("<stage>/<format>"), including when
+// threads resolve and record concurrently.
+public class LatencyHistogramsTest {
+
+    // FixedClock: clock that only moves when told to
+    static class FixedClock implements StageTimings.Clock {
+        long mWallNs = 0;
+
+        @Override
+        public long getWallNs() {
+            return mWallNs;
+        }
+
+        @Override
+        public long getCpuNs() {
+            return mWallNs;
+        }
+    }
+
+    @Test
+    public void testFormatHistograms() {
+        LatencyHistograms latencyHistograms = new LatencyHistograms();
+        LatencyHistograms.FormatHistograms heic = latencyHistograms.getFormat("heic");
+        assertSame(heic, latencyHistograms.getFormat("heic"));
+        assertSame(latencyHistograms.get("decode/heic"), heic.get("decode"));
+        assertSame(heic.get("total"), heic.get("total"));
+
+        FixedClock clock = new FixedClock();
+        StageTimings stageTimings = new StageTimings(clock);
+        StageTimings.Split split = stageTimings.start();
+        clock.mWallNs = 1000;
+        stageTimings.lap("decode", split);
+        clock.mWallNs = 1500;
+        stageTimings.lap("write", split);
+        heic.recordStages(stageTimings);
+        heic.get("total").record(1500);
+
+        assertEquals(1, latencyHistograms.get("decode/heic").getCount());
+        assertEquals(1000, latencyHistograms.get("decode/heic").getMaxNs());
+        assertEquals(500, latencyHistograms.get("write/heic").getMaxNs());
+        assertEquals(1500, latencyHistograms.get("total/heic").getMaxNs());
+        assertEquals(0, latencyHistograms.getFormat("jpg").get("decode").getCount());
+    }
+
+    @Test
+    public void testConcurrentRecords() throws InterruptedException {
+        final LatencyHistograms latencyHistograms = new LatencyHistograms();
+        final int records = 10000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < records; j++) {
+                        latencyHistograms.getFormat("heic").get("total").record(j);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4 * records, latencyHistograms.get("total/heic").getCount());
+    }
+}
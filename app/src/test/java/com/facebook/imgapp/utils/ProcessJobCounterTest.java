@@ -0,0 +1,82 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// ProcessJobCounterTest: checks that only the first job of a process
+// pays the process startup, and that later jobs (which run in the
+// already-running process) report none.
+public class ProcessJobCounterTest {
+    private final static long PROCESS_START_MS = 100000;
+
+    @Test
+    public void testFirstJobPaysStartup() {
+        ProcessJobCounter counter = new ProcessJobCounter(PROCESS_START_MS);
+        ProcessJobCounter.Job job = counter.next(PROCESS_START_MS + 412);
+        assertEquals(1, job.mJobNumber);
+        assertTrue(job.isColdStart());
+        assertEquals(412, job.mProcessAgeMs);
+        assertEquals(412, job.mStartupMs);
+    }
+
+    @Test
+    public void testLaterJobsSkipStartup() {
+        ProcessJobCounter counter = new ProcessJobCounter(PROCESS_START_MS);
+        counter.next(PROCESS_START_MS + 412);
+        long nowMs = PROCESS_START_MS + 412;
+        for (int i = 2; i <= 5; i++) {
+            nowMs += 9000;
+            ProcessJobCounter.Job job = counter.next(nowMs);
+            assertEquals(i, job.mJobNumber);
+            assertFalse(job.isColdStart());
+            assertEquals(nowMs - PROCESS_START_MS, job.mProcessAgeMs);
+            assertEquals(0, job.mStartupMs);
+        }
+        assertEquals(5, counter.getJobCount());
+    }
+
+    @Test
+    public void testConcurrentJobs() throws InterruptedException {
+        // jobs accounted from several threads get distinct numbers, and
+        // exactly one of them pays the startup
+        final ProcessJobCounter counter = new ProcessJobCounter(PROCESS_START_MS);
+        final List<ProcessJobCounter.Job> jobs = new ArrayList<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        ProcessJobCounter.Job job = counter.next(PROCESS_START_MS + 1000);
+                        synchronized (jobs) {
+                            jobs.add(job);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<Integer> jobNumbers = new HashSet<>();
+        int coldStarts = 0;
+        for (ProcessJobCounter.Job job : jobs) {
+            jobNumbers.add(job.mJobNumber);
+            if (job.mStartupMs > 0) {
+                coldStarts += 1;
+                assertEquals(1, job.mJobNumber);
+            }
+        }
+        assertEquals(400, jobNumbers.size());
+        assertEquals(1, coldStarts);
+    }
+}
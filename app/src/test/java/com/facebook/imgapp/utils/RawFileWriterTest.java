@@ -0,0 +1,164 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+// RawFileWriterTest: checks that the stripe writers produce the same
+// bytes as the original per-pixel loop (red, green, blue, and alpha
+// written one byte at a time, in raster order).
+public class RawFileWriterTest {
+    // odd width, and a height that is not a multiple of the stripe height
+    // (261 rows at this width), so the frame needs several stripes, and
+    // the last one is partial
+    private final static int WIDTH = 1001;
+    private final static int HEIGHT = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // ArrayRowSource: pixel source backed by a packed ARGB array
+    static class ArrayRowSource implements RawFileWriter.ArgbRowSource {
+        private final int[] mPixels;
+        private final int mWidth;
+        private final int mHeight;
+
+        ArrayRowSource(int[] pixels, int width, int height) {
+            mPixels = pixels;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void getRows(int[] pixels, int y, int rows) {
+            System.arraycopy(mPixels, y * mWidth, pixels, 0, rows * mWidth);
+        }
+    }
+
+    static int[] getRandomPixels(int width, int height, long seed) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(seed);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    // the original per-pixel loop
+    static byte[] getReferenceRgba(int[] pixels) {
+        byte[] rgba = new byte[4 * pixels.length];
+        int j = 0;
+        for (int pixel : pixels) {
+            rgba[j++] = (byte) ((pixel >> 16) & 0xff);
+            rgba[j++] = (byte) ((pixel >> 8) & 0xff);
+            rgba[j++] = (byte) (pixel & 0xff);
+            rgba[j++] = (byte) ((pixel >> 24) & 0xff);
+        }
+        return rgba;
+    }
+
+    @Test
+    public void testFrameNeedsSeveralStripes() {
+        int stripeHeight = RawFileWriter.getStripeHeight(WIDTH);
+        assertTrue(HEIGHT > 2 * stripeHeight);
+        assertTrue(HEIGHT % stripeHeight != 0);
+    }
+
+    @Test
+    public void testArgbToRgba() {
+        int[] pixels = getRandomPixels(WIDTH, 3, 1);
+        ByteBuffer rgba = ByteBuffer.allocate(4 * pixels.length);
+        PixelConverter.argbToRgba(pixels, 0, rgba, pixels.length);
+        assertEquals(rgba.capacity(), rgba.position());
+        assertArrayEquals(getReferenceRgba(pixels), rgba.array());
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        int[] pixels = getRandomPixels(WIDTH, HEIGHT, 2);
+        File file = mFolder.newFile("write.rgba");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            new RawFileWriter().write(new ArrayRowSource(pixels, WIDTH, HEIGHT), channel);
+            assertEquals(4L * WIDTH * HEIGHT, channel.position());
+        }
+        assertArrayEquals(getReferenceRgba(pixels), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testWriteMapped() throws IOException {
+        int[] pixels = getRandomPixels(WIDTH, HEIGHT, 3);
+        File file = mFolder.newFile("mapped.rgba");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            new RawFileWriter().writeMapped(new ArrayRowSource(pixels, WIDTH, HEIGHT), channel);
+        }
+        assertArrayEquals(getReferenceRgba(pixels), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testConvert() {
+        int[] pixels = getRandomPixels(WIDTH, HEIGHT, 4);
+        // the frame is written at the buffer position
+        ByteBuffer frame = ByteBuffer.allocate(4 * WIDTH * HEIGHT + 3);
+        frame.position(3);
+        new RawFileWriter().convert(new ArrayRowSource(pixels, WIDTH, HEIGHT), frame);
+        assertEquals(3, frame.position());
+        byte[] rgba = new byte[4 * WIDTH * HEIGHT];
+        frame.get(rgba);
+        assertArrayEquals(getReferenceRgba(pixels), rgba);
+    }
+
+    @Test
+    public void testParallelWrite() throws IOException {
+        int[] pixels = getRandomPixels(WIDTH, HEIGHT, 5);
+        ParallelPixelConverter parallelConverter = new ParallelPixelConverter(3);
+        File file = mFolder.newFile("parallel.rgba");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            RawFileWriter writer = new RawFileWriter();
+            writer.setParallelConverter(parallelConverter);
+            writer.write(new ArrayRowSource(pixels, WIDTH, HEIGHT), channel);
+        } finally {
+            parallelConverter.shutdown();
+        }
+        assertArrayEquals(getReferenceRgba(pixels), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testWriterReuse() throws IOException {
+        // buffers from a larger frame are reused for a smaller one
+        RawFileWriter writer = new RawFileWriter();
+        int[] pixels = getRandomPixels(WIDTH, HEIGHT, 6);
+        writer.convert(new ArrayRowSource(pixels, WIDTH, HEIGHT), ByteBuffer.allocate(4 * WIDTH * HEIGHT));
+        int[] small = getRandomPixels(7, 5, 7);
+        File file = mFolder.newFile("small.rgba");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            writer.write(new ArrayRowSource(small, 7, 5), channel);
+        }
+        assertArrayEquals(getReferenceRgba(small), Files.readAllBytes(file.toPath()));
+    }
+}
@@ -0,0 +1,171 @@
+package com.facebook.imgapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// RawPixelFormatTest: checks the YUV kernels against reference vectors
+// produced by ffmpeg's swscale (ffmpeg 6.1.1), in resources/.../yuv:
+// $ ffmpeg -f rawvideo -pix_fmt rgba -s 9x7 -i frame-9x7.rgba \
+//     -vf scale=out_color_matrix=<matrix>:out_range=<range> \
+//     -pix_fmt <yuv444p|yuv420p|nv12|nv21> -f rawvideo frame-9x7.<matrix>-<range>.<pix_fmt>
+// The frame has odd dimensions (so the last chroma row and column only
+// cover 1 or 2 pixels), smooth gradients with wrap-around edges, and a
+// patch of random pixels.
+public class RawPixelFormatTest {
+    private final static int WIDTH = 9;
+    private final static int HEIGHT = 7;
+    private final static String[] MATRICES = {"bt601", "bt709"};
+    private final static String[] RANGES = {"limited", "full"};
+    // our format name, and the ffmpeg pix_fmt name
+    private final static String[][] FORMATS = {
+        {"yuv444p", "yuv444p"}, {"i420", "yuv420p"}, {"nv12", "nv12"}, {"nv21", "nv21"}};
+    private final static int TOLERANCE = 1;
+
+    static byte[] readResource(String name) throws IOException {
+        try (InputStream is = RawPixelFormatTest.class.getResourceAsStream("yuv/" + name)) {
+            if (is == null) {
+                throw new IOException("missing test resource: " + name);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    static byte[] readReference(String matrix, String range, String pixFmt) throws IOException {
+        return readResource("frame-" + WIDTH + "x" + HEIGHT + "." + matrix + "-" + range + "." + pixFmt);
+    }
+
+    static int[] readFrame() throws IOException {
+        byte[] rgba = readResource("frame-" + WIDTH + "x" + HEIGHT + ".rgba");
+        int[] argb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = ((rgba[4 * i + 3] & 0xff) << 24) | ((rgba[4 * i] & 0xff) << 16)
+                    | ((rgba[4 * i + 1] & 0xff) << 8) | (rgba[4 * i + 2] & 0xff);
+        }
+        return argb;
+    }
+
+    static byte[] convert(String format, String matrix, String range) throws IOException {
+        RawFileWriter writer = new RawFileWriter();
+        RawPixelFormat pixelFormat = RawPixelFormat.get(format, matrix, range);
+        writer.setPixelFormat(pixelFormat);
+        ByteBuffer frame = ByteBuffer.allocate((int) pixelFormat.getFrameSize(WIDTH, HEIGHT));
+        writer.convert(new RawFileWriterTest.ArrayRowSource(readFrame(), WIDTH, HEIGHT), frame);
+        return frame.array();
+    }
+
+    private static void assertWithin(String message, double expected, int actual, double tolerance) {
+        assertTrue(message + ": expected " + expected + " got " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+
+    @Test
+    public void testSameInstance() {
+        // the writer keeps its buffers while the format is the same instance
+        for (String[] format : FORMATS) {
+            assertSame(format[0], RawPixelFormat.get(format[0], "bt709", "full"), RawPixelFormat.get(format[0], "bt709", "full"));
+        }
+        assertSame(RawPixelFormat.get("i420", "bt601", "limited"), RawPixelFormat.get("yuv420p", "bt601", "limited"));
+        assertNotSame(RawPixelFormat.get("nv12", "bt601", "limited"), RawPixelFormat.get("nv12", "bt709", "limited"));
+        assertNotSame(RawPixelFormat.get("nv12", "bt601", "limited"), RawPixelFormat.get("nv12", "bt601", "full"));
+    }
+
+    @Test
+    public void testFrameSize() throws IOException {
+        for (String[] format : FORMATS) {
+            byte[] reference = readReference("bt601", "limited", format[1]);
+            assertEquals(format[0], reference.length,
+                    RawPixelFormat.get(format[0], "bt601", "limited").getFrameSize(WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    public void testLuma() throws IOException {
+        for (String matrix : MATRICES) {
+            for (String range : RANGES) {
+                for (String[] format : FORMATS) {
+                    byte[] reference = readReference(matrix, range, format[1]);
+                    byte[] frame = convert(format[0], matrix, range);
+                    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                        assertWithin(format[0] + " " + matrix + " " + range + " Y[" + i + "]",
+                                reference[i] & 0xff, frame[i] & 0xff, TOLERANCE);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChroma444() throws IOException {
+        for (String matrix : MATRICES) {
+            for (String range : RANGES) {
+                byte[] reference = readReference(matrix, range, "yuv444p");
+                byte[] frame = convert("yuv444p", matrix, range);
+                for (int i = WIDTH * HEIGHT; i < 3 * WIDTH * HEIGHT; i++) {
+                    assertWithin("yuv444p " + matrix + " " + range + " UV[" + i + "]",
+                            reference[i] & 0xff, frame[i] & 0xff, TOLERANCE);
+                }
+            }
+        }
+    }
+
+    // 2x2 box average of a full resolution (yuv444p) chroma plane, using
+    // only the pixels inside the frame
+    private static double getBoxAverage(byte[] yuv444p, int plane, int cx, int cy) {
+        int sum = 0;
+        int count = 0;
+        for (int y = 2 * cy; y < Math.min(2 * cy + 2, HEIGHT); y++) {
+            for (int x = 2 * cx; x < Math.min(2 * cx + 2, WIDTH); x++) {
+                sum += yuv444p[plane * WIDTH * HEIGHT + y * WIDTH + x] & 0xff;
+                count++;
+            }
+        }
+        return (double) sum / count;
+    }
+
+    @Test
+    public void testChroma420() throws IOException {
+        int chromaWidth = (WIDTH + 1) / 2;
+        int chromaHeight = (HEIGHT + 1) / 2;
+        int chromaSize = chromaWidth * chromaHeight;
+        for (String matrix : MATRICES) {
+            for (String range : RANGES) {
+                byte[] reference = readReference(matrix, range, "yuv444p");
+                byte[] i420 = convert("i420", matrix, range);
+                byte[] nv12 = convert("nv12", matrix, range);
+                byte[] nv21 = convert("nv21", matrix, range);
+                int chroma = WIDTH * HEIGHT;
+                for (int cy = 0; cy < chromaHeight; cy++) {
+                    for (int cx = 0; cx < chromaWidth; cx++) {
+                        String message = matrix + " " + range + " (" + cx + ", " + cy + ")";
+                        int c = cy * chromaWidth + cx;
+                        int u = i420[chroma + c] & 0xff;
+                        int v = i420[chroma + chromaSize + c] & 0xff;
+                        // the 1-4 pixel box average of swscale's 4:4:4 chroma
+                        assertWithin("i420 " + message + " U", getBoxAverage(reference, 1, cx, cy), u, TOLERANCE);
+                        assertWithin("i420 " + message + " V", getBoxAverage(reference, 2, cx, cy), v, TOLERANCE);
+                        // same chroma samples, interleaved
+                        assertEquals("nv12 " + message + " U", u, nv12[chroma + 2 * c] & 0xff);
+                        assertEquals("nv12 " + message + " V", v, nv12[chroma + 2 * c + 1] & 0xff);
+                        assertEquals("nv21 " + message + " V", v, nv21[chroma + 2 * c] & 0xff);
+                        assertEquals("nv21 " + message + " U", u, nv21[chroma + 2 * c + 1] & 0xff);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.facebook.imgapp.benchmark;
+
+import com.facebook.imgapp.utils.RawFileReader;
+import com.facebook.imgapp.utils.RawFileWriter;
+
+import java.util.Random;
+
+// Frames: test frames for the benchmarks.
+class Frames {
+    // frame sizes (1 MP, 12 MP, and 50 MP, 4:3)
+    static final String SIZE_1MP = "1152x864";
+    static final String SIZE_12MP = "4000x3000";
+    static final String SIZE_50MP = "8160x6120";
+
+    static int getWidth(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int getHeight(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    static int[] getPixels(int width, int height) {
+        // random pixels (so nothing can be skipped as constant)
+        int[] pixels = new int[width * height];
+        Random random = new Random(0);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    // ArrayRowSource: pixel rows from an int[] (what Bitmap.getPixels()
+    // returns on the device)
+    static class ArrayRowSource implements RawFileWriter.ArgbRowSource {
+        private final int[] mPixels;
+        private final int mWidth;
+        private final int mHeight;
+
+        ArrayRowSource(int[] pixels, int width, int height) {
+            mPixels = pixels;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void getRows(int[] pixels, int y, int rows) {
+            System.arraycopy(mPixels, y * mWidth, pixels, 0, rows * mWidth);
+        }
+    }
+
+    // ArrayRowSink: pixel rows into an int[] (what Bitmap.setPixels()
+    // does on the device)
+    static class ArrayRowSink implements RawFileReader.ArgbRowSink {
+        private final int[] mPixels;
+        private final int mWidth;
+
+        ArrayRowSink(int[] pixels, int width) {
+            mPixels = pixels;
+            mWidth = width;
+        }
+
+        @Override
+        public void setRows(int[] pixels, int y, int rows) {
+            System.arraycopy(pixels, 0, mPixels, y * mWidth, rows * mWidth);
+        }
+    }
+}
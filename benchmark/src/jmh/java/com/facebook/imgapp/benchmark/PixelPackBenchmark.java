@@ -0,0 +1,96 @@
+package com.facebook.imgapp.benchmark;
+
+import com.facebook.imgapp.utils.ParallelPixelConverter;
+import com.facebook.imgapp.utils.PixelConverter;
+import com.facebook.imgapp.utils.RawFileWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// PixelPackBenchmark: ARGB (Bitmap.getPixels()) to packed RGBA conversion
+// of a full frame, and back.
+// * perPixel: the original loop (shift out every channel, and write the
+//   bytes one by one).
+// * bulk: PixelConverter (one int rotation per pixel), in stripes.
+// * parallel: RawFileWriter.convert() with a ParallelPixelConverter.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PixelPackBenchmark {
+    @Param({Frames.SIZE_1MP, Frames.SIZE_12MP, Frames.SIZE_50MP})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private ByteBuffer mFrame;
+    private int[] mUnpacked;
+    private RawFileWriter mRawFileWriter;
+    private ParallelPixelConverter mParallelConverter;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mWidth = Frames.getWidth(size);
+        mHeight = Frames.getHeight(size);
+        mPixels = Frames.getPixels(mWidth, mHeight);
+        mFrame = ByteBuffer.allocateDirect(4 * mWidth * mHeight);
+        mUnpacked = new int[mWidth * mHeight];
+        mRawFileWriter = new RawFileWriter();
+        mParallelConverter = new ParallelPixelConverter(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mParallelConverter.shutdown();
+    }
+
+    @Benchmark
+    public ByteBuffer packPerPixel() {
+        mFrame.clear();
+        for (int i = 0; i < mPixels.length; i++) {
+            int pixel = mPixels[i];
+            mFrame.put((byte) ((pixel >> 16) & 0xff));
+            mFrame.put((byte) ((pixel >> 8) & 0xff));
+            mFrame.put((byte) (pixel & 0xff));
+            mFrame.put((byte) ((pixel >> 24) & 0xff));
+        }
+        return mFrame;
+    }
+
+    @Benchmark
+    public ByteBuffer packBulk() {
+        mFrame.clear();
+        int stripePixels = RawFileWriter.getStripeHeight(mWidth) * mWidth;
+        for (int i = 0; i < mPixels.length; i += stripePixels) {
+            PixelConverter.argbToRgba(mPixels, i, mFrame, Math.min(stripePixels, mPixels.length - i));
+        }
+        return mFrame;
+    }
+
+    @Benchmark
+    public ByteBuffer packParallel() {
+        mRawFileWriter.setParallelConverter(mParallelConverter);
+        mFrame.clear();
+        mRawFileWriter.convert(new Frames.ArrayRowSource(mPixels, mWidth, mHeight), mFrame);
+        return mFrame;
+    }
+
+    @Benchmark
+    public int[] unpackBulk() {
+        mFrame.clear();
+        PixelConverter.rgbaToArgb(mFrame, mUnpacked, 0, mUnpacked.length);
+        return mUnpacked;
+    }
+}
@@ -0,0 +1,86 @@
+package com.facebook.imgapp.benchmark;
+
+import com.facebook.imgapp.utils.PixelConverter;
+import com.facebook.imgapp.utils.RawFileReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// RawFileReadBenchmark: read a packed RGBA raw file into ARGB pixels
+// (the encode input).
+// * array: the original reader (read the whole file into a byte array,
+//   then convert it into the pixels).
+// * stripes: RawFileReader (small reusable direct buffer, converted
+//   stripe by stripe).
+// Note that the results depend on the page cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RawFileReadBenchmark {
+    @Param({Frames.SIZE_1MP, Frames.SIZE_12MP, Frames.SIZE_50MP})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private File mFile;
+    private RawFileReader mRawFileReader;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mWidth = Frames.getWidth(size);
+        mHeight = Frames.getHeight(size);
+        mFile = File.createTempFile("imgapp", ".rgba");
+        // write random bytes as the raw file
+        int[] pixels = Frames.getPixels(mWidth, mHeight);
+        ByteBuffer bytes = ByteBuffer.allocate(4 * pixels.length);
+        bytes.asIntBuffer().put(pixels);
+        try (FileOutputStream fileOutputStream = new FileOutputStream(mFile)) {
+            fileOutputStream.write(bytes.array());
+        }
+        mPixels = new int[mWidth * mHeight];
+        mRawFileReader = new RawFileReader();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int[] readArray() throws IOException {
+        byte[] bytes = new byte[(int) mFile.length()];
+        try (DataInputStream dataInputStream = new DataInputStream(new FileInputStream(mFile))) {
+            dataInputStream.readFully(bytes);
+        }
+        // same RGBA to ARGB packing as the stripes, so both benchmarks
+        // measure read + convert
+        PixelConverter.rgbaToArgb(ByteBuffer.wrap(bytes), mPixels, 0, mPixels.length);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] readStripes() throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(mFile)) {
+            mRawFileReader.read(fileInputStream.getChannel(), mWidth, mHeight, new Frames.ArrayRowSink(mPixels, mWidth));
+        }
+        return mPixels;
+    }
+}
@@ -0,0 +1,83 @@
+package com.facebook.imgapp.benchmark;
+
+import com.facebook.imgapp.utils.RawFileWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+// RawFileWriteBenchmark: write a full frame as a packed RGBA raw file
+// (the rawWriter parameter).
+// * stream: the original writer (BufferedOutputStream, one byte at a time).
+// * bulk: RawFileWriter stripes through a FileChannel.
+// * mmap: RawFileWriter straight into a mapping of the file.
+// Note that the results depend on the page cache (no fsync).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RawFileWriteBenchmark {
+    @Param({Frames.SIZE_1MP, Frames.SIZE_12MP, Frames.SIZE_50MP})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels;
+    private File mFile;
+    private RawFileWriter mRawFileWriter;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mWidth = Frames.getWidth(size);
+        mHeight = Frames.getHeight(size);
+        mPixels = Frames.getPixels(mWidth, mHeight);
+        mFile = File.createTempFile("imgapp", ".rgba");
+        mRawFileWriter = new RawFileWriter();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public void writeStream() throws IOException {
+        try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(new FileOutputStream(mFile))) {
+            for (int i = 0; i < mPixels.length; i++) {
+                int pixel = mPixels[i];
+                bufferedOutputStream.write((pixel >> 16) & 0xff);
+                bufferedOutputStream.write((pixel >> 8) & 0xff);
+                bufferedOutputStream.write(pixel & 0xff);
+                bufferedOutputStream.write((pixel >> 24) & 0xff);
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeBulk() throws IOException {
+        try (FileOutputStream fileOutputStream = new FileOutputStream(mFile)) {
+            mRawFileWriter.write(new Frames.ArrayRowSource(mPixels, mWidth, mHeight), fileOutputStream.getChannel());
+        }
+    }
+
+    @Benchmark
+    public void writeMapped() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw")) {
+            mRawFileWriter.writeMapped(new Frames.ArrayRowSource(mPixels, mWidth, mHeight), randomAccessFile.getChannel());
+        }
+    }
+}
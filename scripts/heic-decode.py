@@ -21,15 +21,18 @@ HEIC files.
 import argparse
 import csv
 import glob
+import json
 import magic
 import math
 import os
 import pathlib
 import shutil
+import socket
 import struct
 import subprocess
 import sys
 import tempfile
+import time
 
 
 PROC_CHOICES = ["help", "decode", "analyze"]
@@ -56,6 +59,23 @@ INPREFERREDCOLORSPACE_CHOICES = [
     "None",
 ]
 
+OUTPUTPIXELFORMAT_CHOICES = ["rgba", "bgra", "rgb24", "yuv444p", "i420", "nv12", "nv21"]
+
+OUTPUTCOLORMATRIX_CHOICES = ["bt601", "bt709"]
+
+OUTPUTCOLORRANGE_CHOICES = ["full", "limited"]
+
+IMGAPP_PACKAGE = "com.facebook.imgapp"
+
+RESULT_POLL_INTERVAL_SEC = 0.2
+
+RESULT_TIMEOUT_SEC = 600
+
+# see ImageStreamProtocol.java
+SERVER_MAGIC = 0x494D4753
+SERVER_VERSION = 1
+SERVER_CONNECT_RETRIES = 50
+
 ANALYSIS_SUPPORTED_IMAGE_FORMATS = ("image/heic", "image/png", "image/jpeg")
 
 default_values = {
@@ -64,7 +84,11 @@ default_values = {
     "width": -1,
     "height": -1,
     "inPreferredColorSpace": None,
+    "outputPixelFormat": "rgba",
+    "outputColorMatrix": "bt601",
+    "outputColorRange": "limited",
     "tmpdir": "/sdcard",
+    "serverPort": None,
     "infile": None,
     "infiles": None,
     "outfile": None,
@@ -554,7 +578,59 @@ def write_results(results, outfile, debug):
             )
 
 
-def decode_heic_using_imgapp(infile, outfile, inPreferredColorSpace, tmpdir, debug):
+def get_raw_frame_size(width, height, output_pixel_format):
+    if output_pixel_format in ("rgba", "bgra"):
+        return 4 * width * height
+    elif output_pixel_format in ("rgb24", "yuv444p"):
+        return 3 * width * height
+    # i420, nv12, and nv21: chroma subsampled 2x2
+    chroma_width = (width + 1) // 2
+    chroma_height = (height + 1) // 2
+    return width * height + 2 * chroma_width * chroma_height
+
+
+def read_device_json_file(path, debug):
+    command = f"adb shell cat {path}"
+    returncode, out, err = run(command, debug=debug)
+    if returncode != 0:
+        return None
+    return json.loads(out)
+
+
+def wait_for_imgapp_result(result_path, debug):
+    # imgapp renames the result file into place once the job is done
+    # (successfully or not), so a dead process without a result file is
+    # a crash
+    start = time.time()
+    while True:
+        # 1. check the result file
+        result = read_device_json_file(result_path, debug)
+        if result is not None:
+            return result
+        # 2. check the app is still running
+        command = f"adb shell pidof {IMGAPP_PACKAGE}"
+        returncode, out, err = run(command, debug=debug)
+        if returncode != 0:
+            # the app may have exited right after writing the result
+            result = read_device_json_file(result_path, debug)
+            assert result is not None, f"error: imgapp crashed (no {result_path})"
+            return result
+        assert (
+            time.time() - start < RESULT_TIMEOUT_SEC
+        ), f"error: timeout waiting for {result_path}"
+        time.sleep(RESULT_POLL_INTERVAL_SEC)
+
+
+def decode_heic_using_imgapp(
+    infile,
+    outfile,
+    inPreferredColorSpace,
+    outputPixelFormat,
+    outputColorMatrix,
+    outputColorRange,
+    tmpdir,
+    debug,
+):
     # 1. push the file
     infile_name = os.path.split(infile)[1]
     infile_path = os.path.join(tmpdir, f"{infile_name}")
@@ -585,29 +661,111 @@ def decode_heic_using_imgapp(infile, outfile, inPreferredColorSpace, tmpdir, deb
     inPreferredColorSpace_str = ""
     if inPreferredColorSpace is not None and inPreferredColorSpace != "None":
         inPreferredColorSpace_str = f"-e inPreferredColorSpace {inPreferredColorSpace}"
-    command = f"adb shell am start -W -e decode a -e input {infile_path} {inPreferredColorSpace_str} -e output {outfile_path} com.facebook.imgapp/.MainActivity"
+    output_pixel_format_str = f"-e outputPixelFormat {outputPixelFormat} -e outputColorMatrix {outputColorMatrix} -e outputColorRange {outputColorRange}"
+    command = f"adb shell am start -W -e decode a -e input {infile_path} {inPreferredColorSpace_str} {output_pixel_format_str} -e output {outfile_path} com.facebook.imgapp/.MainActivity"
     returncode, out, err = run(command, debug=debug)
     assert returncode == 0, "error: %s" % err
 
-    # 4. spin until the outfile path is done
-    width, height = get_image_resolution(infile, debug)
-    expected_size = 4 * width * height
-    while True:
-        command = f"adb shell stat -c %s {outfile_path}"
-        returncode, out, err = run(command, debug=debug)
-        if returncode != 0 and b"No such file or directory" in err:
-            continue
-        assert returncode == 0, "error: %s" % err
-        size = int(out)
-        if debug > 0:
-            print(f"{outfile_path} -> {size}")
-        if size == expected_size:
-            break
+    # 4. wait for the result file
+    result_path = f"{outfile_path}.json"
+    result = wait_for_imgapp_result(result_path, debug)
+    if debug > 0:
+        print(f"{result_path} -> {result}")
+    assert result["status"] == "ok", "error: imgapp: %s" % result.get("error")
 
     # 5. pull the outfile
     command = f"adb pull {outfile_path} {outfile}"
     returncode, out, err = run(command, debug=debug)
     assert returncode == 0, "error: %s" % err
+    expected_size = get_raw_frame_size(result["width"], result["height"], outputPixelFormat)
+    size = os.stat(outfile).st_size
+    assert size == expected_size, f"error: {outfile} has {size} bytes (expected {expected_size})"
+
+
+def recv_exactly(sock, size):
+    data = bytearray()
+    while len(data) < size:
+        chunk = sock.recv(min(size - len(data), 1 << 20))
+        assert chunk, "error: server closed the connection"
+        data += chunk
+    return bytes(data)
+
+
+def recv_utf(sock):
+    (length,) = struct.unpack(">H", recv_exactly(sock, 2))
+    return recv_exactly(sock, length).decode("utf-8")
+
+
+def pack_utf(s):
+    data = s.encode("utf-8")
+    return struct.pack(">H", len(data)) + data
+
+
+def decode_heic_using_imgapp_server(
+    infile,
+    outfile,
+    inPreferredColorSpace,
+    outputPixelFormat,
+    outputColorMatrix,
+    outputColorRange,
+    serverPort,
+    debug,
+):
+    # 1. start the server (a no-op if already running), and forward the port
+    command = f"adb shell am start-foreground-service -n {IMGAPP_PACKAGE}/.ImageCodecService -e serverPort {serverPort}"
+    returncode, out, err = run(command, debug=debug)
+    assert returncode == 0, "error: %s" % err
+    command = f"adb forward tcp:{serverPort} tcp:{serverPort}"
+    returncode, out, err = run(command, debug=debug)
+    assert returncode == 0, "error: %s" % err
+
+    # 2. send the request (the encoded image and the parameters)
+    parameters = {
+        "outputPixelFormat": outputPixelFormat,
+        "outputColorMatrix": outputColorMatrix,
+        "outputColorRange": outputColorRange,
+    }
+    if inPreferredColorSpace is not None and inPreferredColorSpace != "None":
+        parameters["inPreferredColorSpace"] = inPreferredColorSpace
+    with open(infile, "rb") as fin:
+        encoded = fin.read()
+    request = struct.pack(">III", SERVER_MAGIC, SERVER_VERSION, len(parameters))
+    for key, value in parameters.items():
+        request += pack_utf(key) + pack_utf(value)
+    request += struct.pack(">I", len(encoded)) + encoded
+    for _ in range(SERVER_CONNECT_RETRIES):
+        sock = None
+        try:
+            sock = socket.create_connection(("localhost", serverPort))
+            sock.sendall(request)
+            # adb accepts the connection even if nothing listens on the
+            # device: wait for the response header
+            header_magic, status = struct.unpack(">II", recv_exactly(sock, 8))
+            break
+        except (ConnectionError, AssertionError):
+            # the server may still be starting
+            if sock is not None:
+                sock.close()
+            time.sleep(RESULT_POLL_INTERVAL_SEC)
+    else:
+        raise AssertionError(f"error: cannot connect to tcp:{serverPort}")
+
+    # 3. read the response, and write the raw frame
+    with sock:
+        assert header_magic == SERVER_MAGIC, f"error: invalid magic: {header_magic:#x}"
+        assert status == 0, "error: imgapp: %s" % recv_utf(sock)
+        pixel_format = recv_utf(sock)
+        width, height, frame_size = struct.unpack(">iiq", recv_exactly(sock, 16))
+        if debug > 0:
+            print(f"{infile} -> {pixel_format} {width}x{height} ({frame_size} bytes)")
+        frame = bytearray(frame_size)
+        while True:
+            position, length = struct.unpack(">qi", recv_exactly(sock, 12))
+            if length == 0:
+                break
+            frame[position : position + length] = recv_exactly(sock, length)
+    with open(outfile, "wb") as fout:
+        fout.write(frame)
 
 
 def get_options(argv):
@@ -700,6 +858,36 @@ def get_options(argv):
         ),
         help="inPreferredColorSpace parameter",
     )
+    parser.add_argument(
+        "--outputPixelFormat",
+        action="store",
+        type=str,
+        dest="outputPixelFormat",
+        default=default_values["outputPixelFormat"],
+        choices=OUTPUTPIXELFORMAT_CHOICES,
+        metavar="[%s]" % (" | ".join(OUTPUTPIXELFORMAT_CHOICES)),
+        help="raw output pixel format (decode)",
+    )
+    parser.add_argument(
+        "--outputColorMatrix",
+        action="store",
+        type=str,
+        dest="outputColorMatrix",
+        default=default_values["outputColorMatrix"],
+        choices=OUTPUTCOLORMATRIX_CHOICES,
+        metavar="[%s]" % (" | ".join(OUTPUTCOLORMATRIX_CHOICES)),
+        help="YUV matrix for the raw output pixel format (decode)",
+    )
+    parser.add_argument(
+        "--outputColorRange",
+        action="store",
+        type=str,
+        dest="outputColorRange",
+        default=default_values["outputColorRange"],
+        choices=OUTPUTCOLORRANGE_CHOICES,
+        metavar="[%s]" % (" | ".join(OUTPUTCOLORRANGE_CHOICES)),
+        help="YUV range for the raw output pixel format (decode)",
+    )
     parser.add_argument(
         "--tmpdir",
         action="store",
@@ -708,6 +896,15 @@ def get_options(argv):
         metavar="TMPDIR",
         help=("TMPDIR tmpdir (default: %s)" % default_values["tmpdir"]),
     )
+    parser.add_argument(
+        "--serverPort",
+        action="store",
+        type=int,
+        dest="serverPort",
+        default=default_values["serverPort"],
+        metavar="PORT",
+        help="decode through the imgapp server on PORT (no files on the device)",
+    )
 
     parser.add_argument(
         "-i",
@@ -755,11 +952,25 @@ def main(argv):
     if options.debug > 1:
         print(options)
     # do something
-    if options.proc == "decode":
+    if options.proc == "decode" and options.serverPort is not None:
+        decode_heic_using_imgapp_server(
+            options.infile,
+            options.outfile,
+            options.inPreferredColorSpace,
+            options.outputPixelFormat,
+            options.outputColorMatrix,
+            options.outputColorRange,
+            options.serverPort,
+            options.debug,
+        )
+    elif options.proc == "decode":
         decode_heic_using_imgapp(
             options.infile,
             options.outfile,
             options.inPreferredColorSpace,
+            options.outputPixelFormat,
+            options.outputColorMatrix,
+            options.outputColorRange,
             options.tmpdir,
             options.debug,
         )